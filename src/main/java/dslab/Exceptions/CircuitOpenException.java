@@ -0,0 +1,14 @@
+package dslab.Exceptions;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of contacting a mailbox server whose circuit breaker is open. It is an {@link IOException}, so the
+ * delivery is retried later like any other that could not reach its server.
+ */
+public class CircuitOpenException extends IOException {
+
+    public CircuitOpenException(String msg) {
+        super(msg);
+    }
+}
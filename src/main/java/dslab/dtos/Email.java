@@ -7,6 +7,7 @@ public class Email {
     private String sender;
     private String subject = "(empty subject)";
     private String data;
+    private MessageBody body;
 
     public Email(String[] recipients, String sender, String subject, String data) {
         this.recipients = recipients;
@@ -20,6 +21,7 @@ public class Email {
 
     public Email(Email that) {
         this(that.recipients, that.sender, that.subject, that.data);
+        this.body = that.body;
     }
 
     public String[] getRecipients() {
@@ -55,13 +57,33 @@ public class Email {
 
     public void setData(String data) {
         this.data = data;
+        this.body = null;
+    }
+
+    /**
+     * Returns the data if it was too large to keep as a string, see {@link #hasBody()}.
+     */
+    public MessageBody getBody() {
+        return body;
+    }
+
+    /**
+     * Sets file-backed data instead of {@link #getData()}.
+     */
+    public void setBody(MessageBody body) {
+        this.body = body;
+        this.data = null;
+    }
+
+    public boolean hasBody() {
+        return body != null;
     }
 
     public boolean isComplete() {
         return recipients != null
                 && sender != null
                 && subject != null
-                && data != null;
+                && (data != null || body != null);
     }
 
     public String getMissingField() {
@@ -74,7 +96,7 @@ public class Email {
         if (subject == null){
             return "subject";
         }
-        if (data == null){
+        if (data == null && body == null){
             return "data";
         }
         return "nothing";
@@ -86,7 +108,7 @@ public class Email {
                 "recipients=" + Arrays.toString(recipients) +
                 ", sender='" + sender + '\'' +
                 ", subject='" + subject + '\'' +
-                ", data='" + data + '\'' +
+                ", data='" + (body != null ? body : data) + '\'' +
                 '}';
     }
 
@@ -0,0 +1,71 @@
+package dslab.dtos;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The data of an email that was too large to keep on the heap and was written to a file instead. The lines of the
+ * file are the lines of the data. Whoever finishes with the email deletes the file.
+ */
+public final class MessageBody {
+
+    private final Path file;
+    private final long size;
+    private final Charset charset;
+
+    /**
+     * @param file    the file holding the data
+     * @param size    the size of the data in bytes
+     * @param charset the charset the data is encoded with
+     */
+    public MessageBody(Path file, long size, Charset charset) {
+        this.file = file;
+        this.size = size;
+        this.charset = charset;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Opens the data for reading it line by line.
+     *
+     * @return a reader the caller closes
+     * @throws IOException if the file cannot be opened
+     */
+    public BufferedReader open() throws IOException {
+        return Files.newBufferedReader(file, charset);
+    }
+
+    /**
+     * Reads the whole data into a string, for the few places that need it at once.
+     *
+     * @return the data
+     * @throws IOException if the file cannot be read
+     */
+    public String read() throws IOException {
+        return Files.readString(file, charset);
+    }
+
+    /**
+     * Deletes the file. Does nothing if it is already gone.
+     *
+     * @throws IOException if the file cannot be deleted
+     */
+    public void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Override
+    public String toString() {
+        return "(" + size + " bytes in " + file.getFileName() + ")";
+    }
+}
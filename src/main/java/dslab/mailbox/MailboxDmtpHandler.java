@@ -0,0 +1,82 @@
+package dslab.mailbox;
+
+import dslab.dtos.Email;
+import dslab.protocols.CommandParser;
+import dslab.protocols.DmtpSessionHandler;
+import dslab.util.Config;
+import dslab.util.DomainTrie;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The mailbox server side of DMTP: recipients of the own domain must be known users, and complete emails are saved
+ * in their mailboxes.
+ */
+public class MailboxDmtpHandler implements DmtpSessionHandler {
+
+    private static final Logger audit = Logger.getLogger("requests");
+
+    private final Map<String, ConcurrentHashMap<Long, Email>> mailboxes;
+    private final AtomicLong messageSequence;
+    private final DomainTrie<String> domains;
+    private final Config userConfig;
+
+    public MailboxDmtpHandler(Map<String, ConcurrentHashMap<Long, Email>> mailbox, AtomicLong messageSequence, DomainTrie<String> domains, String userConfig) {
+        this.mailboxes = mailbox;
+        this.messageSequence = messageSequence;
+        this.domains = domains;
+        this.userConfig = new Config(userConfig);
+    }
+
+    @Override
+    public String recipients(Email email, CommandParser command) {
+        String addresses = command.argumentString();
+        email.setRecipients(addresses.split(","));
+        int knownRecipients = 0;
+        for (String recipient : email.getRecipients()) {
+            int at = recipient.indexOf('@');
+            String recipientUser = recipient.substring(0, Math.max(at, 0));
+            String recipientDomain = recipient.substring(at + 1);
+            // the domain of this server or one of its subdomains
+            if (at >= 0 && domains.findSuffix(recipientDomain) != null) {
+                if (!userConfig.containsKey(recipientUser)) {
+                    return "error unknown recipient " + recipientUser;
+                }
+                knownRecipients++;
+            }
+        }
+        if (knownRecipients == 0) {
+            audit.log(Level.WARNING, addresses + " error no known domain");
+            return "error no known domain";
+        }
+        return OK + " " + knownRecipients;
+    }
+
+    @Override
+    public String store(Email email, InetAddress client) {
+        saveInMailbox(email);
+        audit.info(email + " has been received");
+        return OK;
+    }
+
+    private void saveInMailbox(Email email) {
+            for (String recipient: email.getRecipients()) {
+                int at = recipient.indexOf('@');
+                String user = at < 0 ? recipient : recipient.substring(0, at);
+                if (mailboxes.containsKey(user)) {
+                    ConcurrentHashMap<Long, Email> mailbox = mailboxes.get(user);
+                    mailbox.putIfAbsent(messageSequence.getAndIncrement(), email);
+                    mailboxes.replace(user, mailbox);
+                } else {
+                    ConcurrentHashMap<Long, Email> mailbox = new ConcurrentHashMap<>();
+                    mailbox.putIfAbsent(messageSequence.getAndIncrement(), email);
+                    mailboxes.putIfAbsent(user, mailbox);
+                }
+            }
+    }
+}
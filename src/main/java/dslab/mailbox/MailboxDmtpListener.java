@@ -1,6 +1,8 @@
 package dslab.mailbox;
 
 import dslab.dtos.Email;
+import dslab.protocols.DmtpSessionPool;
+import dslab.util.DomainTrie;
 
 import java.io.IOException;
 import java.net.ServerSocket;
@@ -8,6 +10,7 @@ import java.net.Socket;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -16,26 +19,21 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Handles DMTP request for the MailboxServer and spawns threads for new connections
+ * Handles DMTP request for the MailboxServer and serves new connections with pooled sessions
  */
 public class MailboxDmtpListener extends Thread {
 
     private static final Logger audit = Logger.getLogger("requests");
     private static final Logger errors = Logger.getLogger("errors");
-    private final HashMap<String, ConcurrentHashMap<Long, Email>> mailbox;
-    private final AtomicLong messageSequence;
-    private final String domain;
-    private final String userConfig;
+    private final DmtpSessionPool sessions;
     private final ServerSocket socket;
     private final ExecutorService pool = Executors.newFixedThreadPool(10);
     private final List<Socket> connections = new ArrayList<>();
 
     public MailboxDmtpListener(ServerSocket socket, HashMap<String, ConcurrentHashMap<Long, Email>> mailbox, AtomicLong messageSequence, String domain, String userConfig) {
         this.socket = socket;
-        this.mailbox = mailbox;
-        this.messageSequence = messageSequence;
-        this.domain = domain;
-        this.userConfig = userConfig;
+        this.sessions = new DmtpSessionPool(new MailboxDmtpHandler(mailbox, messageSequence,
+                new DomainTrie<>(Map.of(domain, domain)), userConfig), 10);
     }
 
     @Override
@@ -45,8 +43,7 @@ public class MailboxDmtpListener extends Thread {
             while (true) {
                 Socket connection = socket.accept();
                 connections.add(connection);
-                Runnable task = new MailboxDmtpThread(connection, mailbox, messageSequence, domain, userConfig);
-                pool.submit(task);
+                pool.submit(() -> sessions.serve(connection));
             }
         } catch (IOException e) {
             errors.log(Level.SEVERE, e.getMessage(), e);
@@ -4,6 +4,8 @@ import dslab.dtos.AddressDto;
 
 import java.io.UnsupportedEncodingException;
 import java.net.DatagramPacket;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 /**
@@ -15,33 +17,37 @@ public class MonitorRequestHandler {
     private static final Logger errors = Logger.getLogger("errors");
 
     /**
-     * handles the given request and checks if the request has the format <host>:<port> <email-address>
+     * handles the given request. A request holds one or more lines of the format <host>:<port> <email-address>, so
+     * that transfer servers can report several deliveries with one packet
      *
      * @param packet that was recieved
-     * @return the host, port and email as a dto object
+     * @return the host, port and email of every line as dto objects, or null if one of the lines has a wrong format
      * @throws UnsupportedEncodingException
      */
-    public AddressDto handleRequest(DatagramPacket packet) throws UnsupportedEncodingException {
+    public List<AddressDto> handleRequest(DatagramPacket packet) throws UnsupportedEncodingException {
 
         // get the data from the packet
-        String request = new String(packet.getData());
+        String request = new String(packet.getData(), packet.getOffset(), packet.getLength());
         request = request.replace("\u0000","");
 
         audit.info("Received request-packet from client: " + request);
 
-        return getResponse(request);
+        List<AddressDto> records = new ArrayList<>();
+        for (String line : request.split("\\n")) {
+            AddressDto record = getResponse(line);
+            if (record == null) {
+                return null;
+            }
+            records.add(record);
+        }
+        return records;
     }
 
-    private AddressDto getResponse(String request) {
-
+    private AddressDto getResponse(String line) {
 
-        // check if request has the correct format:
+        // check if line has the correct format:
         // <host>:<port> <email-address>
-        String[] lines = request.split("\\n");
-        if (lines.length != 1) {
-            return null;
-        }
-        String[] parts = lines[0].split("\\s");
+        String[] parts = line.split("\\s");
         if (parts.length != 2) {
             return null;
         }
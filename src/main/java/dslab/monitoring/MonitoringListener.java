@@ -9,6 +9,7 @@ import java.net.DatagramSocket;
 import java.net.SocketException;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,10 +45,10 @@ public class MonitoringListener extends Thread {
                 socket.receive(packet);
 
                 String response = "!error provided message does not fit the expected format: !ping <client-name>";
-                AddressDto data = handler.handleRequest(packet);
+                List<AddressDto> records = handler.handleRequest(packet);
 
-                if (data != null) {
-                    saveStatistics(data);
+                if (records != null) {
+                    records.forEach(this::saveStatistics);
                     response = "success";
                 }
 
@@ -0,0 +1,253 @@
+package dslab.protocols;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses DMTP and DMAP command lines directly from bytes. The verb is recognised by comparing bytes and the argument
+ * is only remembered as a range of the line, so parsing a command allocates nothing; callers decode the argument
+ * only if they need it as a string. One parser holds the state of the last parsed line and is meant to be reused by
+ * a single session.
+ */
+public final class CommandParser {
+
+    /**
+     * The commands of both protocols.
+     */
+    public enum Verb {
+        BEGIN("begin", false),
+        TO("to", true),
+        FROM("from", true),
+        SUBJECT("subject", true),
+        DATA("data", true),
+        /**
+         * {@code data} without an argument: the data follows on its own lines, up to a line holding a single dot.
+         */
+        DATA_BLOCK("data", false),
+        /**
+         * {@code compress <algorithm>}, see {@link DmtpCompression}.
+         */
+        COMPRESS("compress", true),
+        /**
+         * {@code zdata <base64>}: deflated data.
+         */
+        ZDATA("zdata", true),
+        /**
+         * {@code zdata} without an argument: deflated data as base64 lines, up to a line holding a single dot.
+         */
+        ZDATA_BLOCK("zdata", false),
+        SEND("send", false),
+        QUIT("quit", false),
+        LOGIN("login", true),
+        LIST("list", false),
+        SHOW("show", true),
+        DELETE("delete", true),
+        LOGOUT("logout", false),
+        /**
+         * Anything else, including a known verb with a missing or unexpected argument.
+         */
+        UNKNOWN("", false);
+
+        private final byte[] name;
+        private final boolean argument;
+
+        Verb(String name, boolean argument) {
+            this.name = name.getBytes(StandardCharsets.US_ASCII);
+            this.argument = argument;
+        }
+    }
+
+    private static final Verb[] VERBS = Verb.values();
+
+    private final Charset charset;
+    private ByteBuffer line;
+    private Verb verb = Verb.UNKNOWN;
+    private int lineStart;
+    private int lineEnd;
+    private int argumentStart;
+    private int argumentEnd;
+    private int invalidStart;
+    private int invalidEnd;
+
+    /**
+     * @param charset the charset arguments are decoded with
+     */
+    public CommandParser(Charset charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * Parses the line between the position and the limit of the buffer, without its line separator; a trailing
+     * carriage return is ignored. The buffer is not modified and must not change while the result is used.
+     *
+     * @param line the buffer holding the line
+     * @return the recognised verb
+     */
+    public Verb parse(ByteBuffer line) {
+        this.line = line;
+        lineStart = line.position();
+        lineEnd = line.limit();
+        if (lineEnd > lineStart && line.get(lineEnd - 1) == '\r') {
+            lineEnd--;
+        }
+
+        int space = lineStart;
+        while (space < lineEnd && line.get(space) != ' ') {
+            space++;
+        }
+        boolean hasArgument = space < lineEnd;
+        argumentStart = hasArgument ? space + 1 : lineEnd;
+        argumentEnd = lineEnd;
+
+        verb = Verb.UNKNOWN;
+        for (Verb candidate : VERBS) {
+            if (candidate.argument == hasArgument && matches(candidate.name, space)) {
+                verb = candidate;
+                break;
+            }
+        }
+        return verb;
+    }
+
+    public Verb verb() {
+        return verb;
+    }
+
+    /**
+     * Returns the absolute index of the first argument byte in the parsed buffer.
+     */
+    public int argumentStart() {
+        return argumentStart;
+    }
+
+    /**
+     * Returns the absolute index after the last argument byte in the parsed buffer.
+     */
+    public int argumentEnd() {
+        return argumentEnd;
+    }
+
+    /**
+     * Returns a read-only view of the argument, sharing the bytes of the parsed buffer.
+     */
+    public ByteBuffer argument() {
+        ByteBuffer argument = line.asReadOnlyBuffer();
+        argument.limit(argumentEnd).position(argumentStart);
+        return argument;
+    }
+
+    /**
+     * Decodes the argument.
+     */
+    public String argumentString() {
+        return decode(argumentStart, argumentEnd);
+    }
+
+    /**
+     * Decodes the whole line, e.g. for an error message.
+     */
+    public String lineString() {
+        return decode(lineStart, lineEnd);
+    }
+
+    /**
+     * Checks that the argument is a non-empty comma separated list of addresses of the form
+     * {@code [A-Za-z0-9.]*@[A-Za-z0-9.]*}. Empty entries at the end of the list are ignored.
+     *
+     * @return the number of addresses, or -1 if one of them is invalid; {@link #invalidAddress()} returns it then
+     */
+    public int scanAddresses() {
+        int addresses = 0;
+        int emptyEntries = 0;
+        int start = argumentStart;
+        for (int i = argumentStart; i <= argumentEnd; i++) {
+            if (i < argumentEnd && line.get(i) != ',') {
+                continue;
+            }
+            if (i == start) {
+                emptyEntries++;
+            } else if (emptyEntries > 0 || !isValidAddress(start, i)) {
+                // an invalid address, or an empty one before it
+                invalidStart = start;
+                invalidEnd = emptyEntries > 0 ? start : i;
+                return -1;
+            } else {
+                addresses++;
+            }
+            start = i + 1;
+        }
+        if (addresses == 0) {
+            invalidStart = argumentStart;
+            invalidEnd = argumentStart;
+            return -1;
+        }
+        return addresses;
+    }
+
+    /**
+     * Returns the address {@link #scanAddresses()} rejected.
+     */
+    public String invalidAddress() {
+        return decode(invalidStart, invalidEnd);
+    }
+
+    /**
+     * Checks a single address of the form {@code [A-Za-z0-9.]*@[A-Za-z0-9.]*}.
+     *
+     * @param address the address
+     * @return true if the address is valid
+     */
+    public static boolean isValidAddress(CharSequence address) {
+        int at = 0;
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (c == '@') {
+                at++;
+            } else if (!isAddressChar(c)) {
+                return false;
+            }
+        }
+        return at == 1;
+    }
+
+    private boolean isValidAddress(int start, int end) {
+        int at = 0;
+        for (int i = start; i < end; i++) {
+            byte b = line.get(i);
+            if (b == '@') {
+                at++;
+            } else if (!isAddressChar((char) b)) {
+                return false;
+            }
+        }
+        return at == 1;
+    }
+
+    private static boolean isAddressChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.';
+    }
+
+    private boolean matches(byte[] name, int end) {
+        if (end - lineStart != name.length || name.length == 0) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (line.get(lineStart + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String decode(int start, int end) {
+        if (line.hasArray()) {
+            return new String(line.array(), line.arrayOffset() + start, end - start, charset);
+        }
+        byte[] bytes = new byte[end - start];
+        for (int i = start; i < end; i++) {
+            bytes[i - start] = line.get(i);
+        }
+        return new String(bytes, charset);
+    }
+}
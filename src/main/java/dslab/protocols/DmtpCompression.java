@@ -0,0 +1,162 @@
+package dslab.protocols;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * The DMTP compression extension. After the greeting a client may send {@code compress deflate}; if the server
+ * answers {@code ok deflate}, the client can send the data of an email deflated and base64 encoded, either as
+ * {@code zdata <base64>} or as {@code zdata} followed by base64 lines and a line holding a single dot.
+ * <p>
+ * Every payload is deflated on its own with a preset dictionary of words common in emails, so short messages
+ * compress too. One instance holds a reusable {@link Deflater} and {@link Inflater} for one connection at a time.
+ */
+public final class DmtpCompression {
+
+    public static final String DEFLATE = "deflate";
+
+    private static final byte[] DICTIONARY = ("ok error from to subject data the and you for that with this have "
+            + "are not was will your can about all would there their what when which our please thanks regards "
+            + "hello dear mail message email sent send attached meeting today tomorrow week time ")
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final int CHUNK_SIZE = 8192;
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final Inflater inflater = new Inflater();
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private long maxInflatedSize = Long.MAX_VALUE;
+
+    /**
+     * Deflates a whole payload.
+     *
+     * @param data the payload
+     * @return the deflated bytes
+     */
+    public byte[] compress(byte[] data) {
+        startDeflating();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteBuffer compressed = ByteBuffer.allocate(Math.max(64, data.length / 2));
+        while (!deflater.finished()) {
+            int length = deflater.deflate(chunk);
+            if (compressed.remaining() < length) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(compressed.capacity() * 2,
+                        compressed.position() + length));
+                compressed.flip();
+                compressed = larger.put(compressed);
+            }
+            compressed.put(chunk, 0, length);
+        }
+        byte[] result = new byte[compressed.position()];
+        compressed.flip().get(result);
+        return result;
+    }
+
+    /**
+     * Returns a stream that deflates everything written to it into the given one. Closing it finishes the payload
+     * and closes the given stream.
+     *
+     * @param out where the deflated bytes go
+     * @return the deflating stream
+     */
+    public OutputStream compressing(OutputStream out) {
+        startDeflating();
+        return new DeflaterOutputStream(out, deflater, CHUNK_SIZE);
+    }
+
+    /**
+     * Prepares inflating a new payload.
+     *
+     * @param maxSize the bytes the payload may inflate to at most
+     */
+    public void startInflating(long maxSize) {
+        inflater.reset();
+        maxInflatedSize = maxSize;
+    }
+
+    /**
+     * Inflates the next part of the payload.
+     *
+     * @param compressed the deflated bytes, consumed completely
+     * @param sink       receives the inflated bytes, the buffer is only valid during the call
+     * @throws DataFormatException if the bytes are not valid deflate data or inflate to more than the maximum size
+     */
+    public void inflate(ByteBuffer compressed, Consumer<ByteBuffer> sink) throws DataFormatException {
+        inflater.setInput(compressed);
+        while (true) {
+            int length = inflater.inflate(chunk);
+            if (inflater.getBytesWritten() > maxInflatedSize) {
+                // stop right away, a small payload may be meant to inflate to gigabytes
+                throw new DataFormatException("inflated data exceeds " + maxInflatedSize + " bytes");
+            }
+            if (length > 0) {
+                sink.accept(ByteBuffer.wrap(chunk, 0, length));
+            } else if (inflater.needsDictionary()) {
+                inflater.setDictionary(DICTIONARY);
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns true once the end of the payload has been inflated.
+     */
+    public boolean isInflated() {
+        return inflater.finished();
+    }
+
+    /**
+     * Frees the native memory of the deflater and inflater; the instance must not be used afterwards.
+     */
+    public void end() {
+        deflater.end();
+        inflater.end();
+    }
+
+    private void startDeflating() {
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+    }
+
+    /**
+     * Counts what compression saved and cost, e.g. for one mailbox server.
+     */
+    public static final class Statistics {
+        private final LongAdder messages = new LongAdder();
+        private final LongAdder rawBytes = new LongAdder();
+        private final LongAdder compressedBytes = new LongAdder();
+        private final LongAdder cpuNanos = new LongAdder();
+
+        /**
+         * Records one compressed payload.
+         *
+         * @param rawBytes        its size before compression
+         * @param compressedBytes its size on the wire
+         * @param cpuNanos        the CPU time spent on compressing it
+         */
+        public void record(long rawBytes, long compressedBytes, long cpuNanos) {
+            messages.increment();
+            this.rawBytes.add(rawBytes);
+            this.compressedBytes.add(compressedBytes);
+            this.cpuNanos.add(cpuNanos);
+        }
+
+        @Override
+        public String toString() {
+            long raw = rawBytes.sum();
+            long compressed = compressedBytes.sum();
+            long count = messages.sum();
+            return String.format("messages=%d raw=%d compressed=%d ratio=%.2f cpu=%.1fms (%.1fus/message)",
+                    count, raw, compressed, compressed == 0 ? 0.0 : (double) raw / compressed,
+                    cpuNanos.sum() / 1e6, count == 0 ? 0.0 : cpuNanos.sum() / 1e3 / count);
+        }
+    }
+}
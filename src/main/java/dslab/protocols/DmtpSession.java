@@ -0,0 +1,538 @@
+package dslab.protocols;
+
+import dslab.dtos.Email;
+import dslab.dtos.MessageBody;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+
+/**
+ * The server side of one DMTP connection, independent of how its bytes are read and written. The transport puts what
+ * it reads into {@link #input()} and calls {@link #onInput()}; every complete line is parsed in place and dispatched
+ * through a table of the commands each state permits. Responses collect in a buffer the transport drains with
+ * {@code writeResponses}. What the server does with recipients and emails is up to its {@link DmtpSessionHandler}.
+ * <p>
+ * Besides {@code data <text>} a client can send {@code data} alone, followed by the lines of the data and a line
+ * holding a single dot; data lines starting with a dot get another one prepended. Such data is collected as bytes and
+ * written to a file in the spill directory once it grows beyond the spill threshold, so a large message never has to
+ * fit on the heap. The file then travels with the email as its {@link MessageBody}.
+ * <p>
+ * A client that negotiated {@link DmtpCompression} may send the data deflated instead; it is inflated into the same
+ * block, so large compressed data is spilled just the same.
+ * <p>
+ * Sessions keep their buffers between connections and are recycled by a {@link DmtpSessionPool}.
+ */
+public final class DmtpSession implements DslabMessageTransferProtocol {
+
+    private static final Logger audit = Logger.getLogger("requests");
+    private static final Logger errors = Logger.getLogger("errors");
+
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(CHARSET);
+    private static final Base64.Decoder BASE64 = Base64.getMimeDecoder();
+    private static final int INPUT_SIZE = 4096;
+    private static final int INITIAL_LINE_SIZE = 128;
+    private static final int INITIAL_RESPONSES_SIZE = 256;
+
+    /**
+     * Buffers that grew beyond this for a long line are not kept for the next connection.
+     */
+    private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+    /**
+     * The size compressed data may inflate to at most, so a small payload cannot fill the heap or the disk.
+     */
+    private static final long MAX_INFLATED_SIZE = 16 * 1024 * 1024;
+
+    private enum State {
+        /**
+         * Greeted, the client has to start with {@code begin}.
+         */
+        AWAITING_BEGIN("error protocol error", EnumSet.of(CommandParser.Verb.BEGIN, CommandParser.Verb.COMPRESS)),
+        /**
+         * Assembling emails; {@code begin} starts over, {@code send} hands the email on and starts the next one.
+         */
+        TRANSACTION("error command not supported", EnumSet.of(CommandParser.Verb.BEGIN, CommandParser.Verb.TO,
+                CommandParser.Verb.FROM, CommandParser.Verb.SUBJECT, CommandParser.Verb.DATA,
+                CommandParser.Verb.DATA_BLOCK, CommandParser.Verb.ZDATA, CommandParser.Verb.ZDATA_BLOCK,
+                CommandParser.Verb.COMPRESS, CommandParser.Verb.SEND, CommandParser.Verb.QUIT)),
+        /**
+         * Receiving the lines of a data block; they are not commands.
+         */
+        DATA_BLOCK(null, Collections.emptySet()),
+        /**
+         * Done, the transport closes the connection once the responses are written.
+         */
+        CLOSED(null, Collections.emptySet());
+
+        private final String rejection;
+        private final Set<CommandParser.Verb> commands;
+
+        State(String rejection, Set<CommandParser.Verb> commands) {
+            this.rejection = rejection;
+            this.commands = commands;
+        }
+    }
+
+    private interface Action {
+        void apply(DmtpSession session);
+    }
+
+    private static final Map<CommandParser.Verb, Action> ACTIONS = new EnumMap<>(CommandParser.Verb.class);
+
+    static {
+        ACTIONS.put(CommandParser.Verb.BEGIN, DmtpSession::begin);
+        ACTIONS.put(CommandParser.Verb.TO, DmtpSession::to);
+        ACTIONS.put(CommandParser.Verb.FROM, DmtpSession::from);
+        ACTIONS.put(CommandParser.Verb.SUBJECT, DmtpSession::subject);
+        ACTIONS.put(CommandParser.Verb.DATA, DmtpSession::data);
+        ACTIONS.put(CommandParser.Verb.DATA_BLOCK, DmtpSession::dataBlock);
+        ACTIONS.put(CommandParser.Verb.COMPRESS, DmtpSession::compress);
+        ACTIONS.put(CommandParser.Verb.ZDATA, DmtpSession::zdata);
+        ACTIONS.put(CommandParser.Verb.ZDATA_BLOCK, DmtpSession::zdataBlock);
+        ACTIONS.put(CommandParser.Verb.SEND, DmtpSession::send);
+        ACTIONS.put(CommandParser.Verb.QUIT, DmtpSession::quit);
+    }
+
+    private final DmtpSessionHandler handler;
+    private final long spillThreshold;
+    private final Path spillDirectory;
+    private final CommandParser parser = new CommandParser(CHARSET);
+    private final ByteBuffer input = ByteBuffer.allocate(INPUT_SIZE);
+    private ByteBuffer line = ByteBuffer.allocate(INITIAL_LINE_SIZE);
+    private ByteBuffer responses = ByteBuffer.allocate(INITIAL_RESPONSES_SIZE);
+    private final ByteBuffer newline = ByteBuffer.wrap(new byte[]{'\n'});
+    private ByteBuffer block = ByteBuffer.allocate(INITIAL_LINE_SIZE);
+    private int blockLines;
+    private Path blockFile;
+    private FileChannel blockChannel;
+    private long blockSize;
+    private boolean blockCompressed;
+    private String blockError;
+    private DmtpCompression compression;
+    private boolean compressing;
+    private State state = State.CLOSED;
+    private InetAddress client;
+    private Email email;
+
+    /**
+     * Creates a session that keeps all data on the heap.
+     *
+     * @param handler what the server does with recipients and emails
+     */
+    public DmtpSession(DmtpSessionHandler handler) {
+        this(handler, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * @param handler        what the server does with recipients and emails
+     * @param spillThreshold the size in bytes above which a data block is written to a file
+     * @param spillDirectory where these files are created
+     */
+    public DmtpSession(DmtpSessionHandler handler, long spillThreshold, Path spillDirectory) {
+        this.handler = handler;
+        this.spillThreshold = spillThreshold;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Starts the session on a new connection by greeting the client.
+     *
+     * @param client the address of the client, or null if unknown
+     */
+    public void open(InetAddress client) {
+        this.client = client;
+        state = State.AWAITING_BEGIN;
+        email = new Email();
+        // tell the client he is connected
+        respond(OK + " DMTP");
+    }
+
+    /**
+     * Returns the buffer the transport reads into, in write mode.
+     */
+    public ByteBuffer input() {
+        return input;
+    }
+
+    /**
+     * Handles every complete line in {@link #input()} and keeps the rest for the next call. Lines after the one that
+     * closed the session are ignored.
+     */
+    public void onInput() {
+        input.flip();
+        while (input.hasRemaining() && state != State.CLOSED) {
+            int newline = indexOf(input, (byte) '\n');
+            appendToLine(newline >= 0 ? newline : input.limit());
+            if (newline < 0) {
+                break;
+            }
+            input.get();
+            line.flip();
+            handleLine();
+            line.clear();
+        }
+        input.clear();
+    }
+
+    /**
+     * Returns true once the session has ended; the connection is closed after the pending responses.
+     */
+    public boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    public boolean hasResponses() {
+        return responses.position() > 0;
+    }
+
+    /**
+     * Writes all pending responses to a blocking stream.
+     *
+     * @param out the output stream of the connection
+     * @throws IOException if writing fails
+     */
+    public void writeResponses(OutputStream out) throws IOException {
+        if (hasResponses()) {
+            out.write(responses.array(), responses.arrayOffset(), responses.position());
+            out.flush();
+            responses.clear();
+        }
+    }
+
+    /**
+     * Writes as many pending responses as a non-blocking channel takes.
+     *
+     * @param channel the channel of the connection
+     * @return true if all responses were written
+     * @throws IOException if writing fails
+     */
+    public boolean writeResponses(WritableByteChannel channel) throws IOException {
+        responses.flip();
+        try {
+            channel.write(responses);
+            return !responses.hasRemaining();
+        } finally {
+            responses.compact();
+        }
+    }
+
+    /**
+     * Forgets the connection so the session can serve the next one.
+     */
+    public void reset() {
+        if (state == State.DATA_BLOCK) {
+            discardBlock();
+        }
+        // an email the handler did not take still owns its data file
+        discardBody(email);
+        state = State.CLOSED;
+        email = null;
+        client = null;
+        compressing = false;
+        input.clear();
+        line = line.capacity() > MAX_RETAINED_SIZE ? ByteBuffer.allocate(INITIAL_LINE_SIZE) : line.clear();
+        responses = responses.capacity() > MAX_RETAINED_SIZE
+                ? ByteBuffer.allocate(INITIAL_RESPONSES_SIZE) : responses.clear();
+        block = block.capacity() > MAX_RETAINED_SIZE ? ByteBuffer.allocate(INITIAL_LINE_SIZE) : block.clear();
+    }
+
+    private void handleLine() {
+        if (state == State.DATA_BLOCK) {
+            blockLine();
+            return;
+        }
+        CommandParser.Verb verb = parser.parse(line);
+        if (!state.commands.contains(verb)) {
+            audit.log(Level.WARNING, parser.lineString() + " is not supported");
+            respond(state.rejection);
+            state = State.CLOSED;
+            return;
+        }
+        ACTIONS.get(verb).apply(this);
+    }
+
+    private void begin() {
+        // also when the client starts another transaction on the same connection
+        state = State.TRANSACTION;
+        discardBody(email);
+        email = new Email();
+        respond(OK);
+    }
+
+    private void to() {
+        respond(handler.recipients(email, parser));
+    }
+
+    private void from() {
+        email.setSender(parser.argumentString());
+        respond(OK);
+    }
+
+    private void subject() {
+        email.setSubject(parser.argumentString());
+        respond(OK);
+    }
+
+    private void data() {
+        discardBody(email);
+        email.setData(parser.argumentString());
+        respond(OK);
+    }
+
+    private void dataBlock() {
+        // answered once the block is complete, so every command still gets exactly one response
+        startBlock(false);
+    }
+
+    private void compress() {
+        if (!DmtpCompression.DEFLATE.equals(parser.argumentString())) {
+            respond("error unsupported compression");
+            return;
+        }
+        if (compression == null) {
+            // kept with the pooled session, like its buffers
+            compression = new DmtpCompression();
+        }
+        compressing = true;
+        respond(OK + " " + DmtpCompression.DEFLATE);
+    }
+
+    private void zdata() {
+        startBlock(true);
+        if (blockError == null) {
+            inflate(parser.argument());
+        }
+        endBlock();
+    }
+
+    private void zdataBlock() {
+        startBlock(true);
+    }
+
+    private void startBlock(boolean compressed) {
+        state = State.DATA_BLOCK;
+        block.clear();
+        blockSize = 0;
+        blockLines = 0;
+        blockCompressed = compressed;
+        blockError = null;
+        if (compressed) {
+            if (compressing) {
+                compression.startInflating(MAX_INFLATED_SIZE);
+            } else {
+                blockError = "error compression not negotiated";
+            }
+        }
+    }
+
+    private void blockLine() {
+        int start = line.position();
+        int end = line.limit();
+        if (end > start && line.get(end - 1) == '\r') {
+            end--;
+        }
+        if (end - start == 1 && line.get(start) == '.') {
+            endBlock();
+            return;
+        }
+        line.limit(end).position(start);
+        if (blockCompressed) {
+            if (blockError == null) {
+                inflate(line);
+            }
+            return;
+        }
+        if (end > start && line.get(start) == '.') {
+            line.position(start + 1);
+        }
+        if (blockLines++ > 0) {
+            appendToBlock(newline.rewind());
+        }
+        appendToBlock(line);
+    }
+
+    private void inflate(ByteBuffer base64) {
+        try {
+            compression.inflate(BASE64.decode(base64), this::appendToBlock);
+        } catch (IllegalArgumentException | DataFormatException e) {
+            blockError = "error invalid compressed data";
+        }
+    }
+
+    private void appendToBlock(ByteBuffer bytes) {
+        int length = bytes.remaining();
+        blockSize += length;
+        if (blockError != null) {
+            return;
+        }
+        try {
+            if (blockChannel == null && blockSize > spillThreshold) {
+                blockFile = Files.createTempFile(spillDirectory, "data-", ".txt");
+                blockChannel = FileChannel.open(blockFile, StandardOpenOption.WRITE);
+                block.flip();
+                writeFully(block);
+                block.clear();
+            }
+            if (blockChannel != null) {
+                writeFully(bytes);
+                return;
+            }
+        } catch (IOException e) {
+            errors.log(Level.SEVERE, "Could not write data to " + blockFile + ": " + e.getMessage(), e);
+            blockError = "error could not store data";
+            return;
+        }
+        if (block.remaining() < length) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(block.capacity() * 2, block.position() + length));
+            block.flip();
+            block = larger.put(block);
+        }
+        block.put(bytes);
+    }
+
+    private void writeFully(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            blockChannel.write(bytes);
+        }
+    }
+
+    private void endBlock() {
+        state = State.TRANSACTION;
+        if (blockError == null && blockCompressed && !compression.isInflated()) {
+            blockError = "error invalid compressed data";
+        }
+        if (blockError != null) {
+            discardBlock();
+            respond(blockError);
+            return;
+        }
+        discardBody(email);
+        if (blockChannel == null) {
+            email.setData(new String(block.array(), block.arrayOffset(), block.position(), CHARSET));
+        } else {
+            try {
+                blockChannel.close();
+                email.setBody(new MessageBody(blockFile, blockSize, CHARSET));
+                audit.info("received " + blockSize + " bytes of data into " + blockFile);
+            } catch (IOException e) {
+                errors.log(Level.SEVERE, "Could not write data to " + blockFile + ": " + e.getMessage(), e);
+                discardBlock();
+                respond("error could not store data");
+                return;
+            } finally {
+                blockChannel = null;
+                blockFile = null;
+            }
+        }
+        block.clear();
+        respond(OK);
+    }
+
+    /**
+     * Drops a data block that is not going to become part of an email.
+     */
+    private void discardBlock() {
+        block.clear();
+        if (blockChannel == null) {
+            return;
+        }
+        try {
+            blockChannel.close();
+            Files.deleteIfExists(blockFile);
+        } catch (IOException e) {
+            errors.log(Level.WARNING, "Could not delete " + blockFile + ": " + e.getMessage(), e);
+        } finally {
+            blockChannel = null;
+            blockFile = null;
+        }
+    }
+
+    private static void discardBody(Email email) {
+        if (email == null || !email.hasBody()) {
+            return;
+        }
+        try {
+            email.getBody().delete();
+        } catch (IOException e) {
+            errors.log(Level.WARNING, "Could not delete " + email.getBody() + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void send() {
+        if (!email.isComplete()) {
+            audit.log(Level.WARNING, "error email is missing " + email.getMissingField());
+            respond("error email is missing " + email.getMissingField());
+            return;
+        }
+        try {
+            String response = handler.store(email, client);
+            if (OK.equals(response)) {
+                email = new Email();
+            }
+            respond(response);
+        } catch (InterruptedException e) {
+            errors.log(Level.SEVERE, e.getMessage(), e);
+            Thread.currentThread().interrupt();
+            state = State.CLOSED;
+        }
+    }
+
+    private void quit() {
+        respond(OK + " bye");
+        state = State.CLOSED;
+    }
+
+    private void respond(String response) {
+        byte[] bytes = response.getBytes(CHARSET);
+        int length = bytes.length + LINE_SEPARATOR.length;
+        if (responses.remaining() < length) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(responses.capacity() * 2, responses.position() + length));
+            responses.flip();
+            responses = larger.put(responses);
+        }
+        responses.put(bytes).put(LINE_SEPARATOR);
+    }
+
+    /**
+     * Moves the bytes up to the given index from the input to the current line, growing it if necessary.
+     */
+    private void appendToLine(int end) {
+        int length = end - input.position();
+        if (line.remaining() < length) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(line.capacity() * 2, line.position() + length));
+            line.flip();
+            line = larger.put(line);
+        }
+        int limit = input.limit();
+        input.limit(end);
+        line.put(input);
+        input.limit(limit);
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte b) {
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            if (buffer.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,31 @@
+package dslab.protocols;
+
+import dslab.dtos.Email;
+
+import java.net.InetAddress;
+
+/**
+ * The role specific part of a DMTP server session: which recipients a server takes and what it does with a complete
+ * email. {@link DmtpSession} handles everything else. One handler serves all sessions of a server concurrently.
+ */
+public interface DmtpSessionHandler extends DslabMessageTransferProtocol {
+
+    /**
+     * Handles a {@code to} command and sets the recipients of the email if they are taken.
+     *
+     * @param email   the email of the current transaction
+     * @param command the parsed {@code to} command, its argument is the comma separated list of recipients
+     * @return the response, {@code ok <count>} if the recipients are taken
+     */
+    String recipients(Email email, CommandParser command);
+
+    /**
+     * Takes over a complete email.
+     *
+     * @param email  the email
+     * @param client the address of the client that sent it, or null if unknown
+     * @return the response, {@link #OK} if the email was taken
+     * @throws InterruptedException if interrupted while handing the email on; the session is closed then
+     */
+    String store(Email email, InetAddress client) throws InterruptedException;
+}
@@ -0,0 +1,118 @@
+package dslab.protocols;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Recycles the {@link DmtpSession}s of a server together with their buffers, so a new connection only costs a session
+ * when more clients are connected at once than ever before. Sessions beyond the capacity are dropped on release.
+ */
+public class DmtpSessionPool {
+
+    private static final Logger errors = Logger.getLogger("errors");
+
+    private final DmtpSessionHandler handler;
+    private final long spillThreshold;
+    private final Path spillDirectory;
+    private final BlockingQueue<DmtpSession> idle;
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong active = new AtomicLong();
+
+    /**
+     * Creates a pool of sessions that keep all data on the heap.
+     *
+     * @param handler  the handler of every session
+     * @param capacity the number of idle sessions kept
+     */
+    public DmtpSessionPool(DmtpSessionHandler handler, int capacity) {
+        this(handler, capacity, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * @param handler        the handler of every session
+     * @param capacity       the number of idle sessions kept
+     * @param spillThreshold the size in bytes above which a data block is written to a file
+     * @param spillDirectory where these files are created
+     */
+    public DmtpSessionPool(DmtpSessionHandler handler, int capacity, long spillThreshold, Path spillDirectory) {
+        this.handler = handler;
+        this.spillThreshold = spillThreshold;
+        this.spillDirectory = spillDirectory;
+        this.idle = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Returns an idle session, or a new one if there is none.
+     */
+    public DmtpSession acquire() {
+        active.incrementAndGet();
+        DmtpSession session = idle.poll();
+        if (session != null) {
+            reused.incrementAndGet();
+            return session;
+        }
+        created.incrementAndGet();
+        return new DmtpSession(handler, spillThreshold, spillDirectory);
+    }
+
+    /**
+     * Takes back a session whose connection is closed.
+     *
+     * @param session the session, it must not be used afterwards
+     */
+    public void release(DmtpSession session) {
+        active.decrementAndGet();
+        session.reset();
+        idle.offer(session);
+    }
+
+    /**
+     * Serves a blocking client connection with a pooled session until the session ends or the client disconnects,
+     * then closes the connection.
+     *
+     * @param connection the client connection
+     */
+    public void serve(Socket connection) {
+        DmtpSession session = acquire();
+        try (Socket socket = connection) {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            session.open(socket.getInetAddress());
+            session.writeResponses(out);
+            while (!session.isClosed()) {
+                ByteBuffer input = session.input();
+                int read = in.read(input.array(), input.arrayOffset() + input.position(), input.remaining());
+                if (read == -1) {
+                    break;
+                }
+                input.position(input.position() + read);
+                session.onInput();
+                session.writeResponses(out);
+            }
+        } catch (IOException e) {
+            errors.log(Level.WARNING, "DMTP session ended: " + e.getMessage(), e);
+        } catch (RuntimeException e) {
+            errors.log(Level.SEVERE, e.getMessage(), e);
+        } finally {
+            release(session);
+        }
+    }
+
+    /**
+     * Returns one line of pool statistics.
+     */
+    public String statistics() {
+        return String.format("active=%d idle=%d created=%d reused=%d", active.get(), idle.size(), created.get(),
+                reused.get());
+    }
+}
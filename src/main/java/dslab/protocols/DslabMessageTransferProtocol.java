@@ -7,6 +7,12 @@ public interface DslabMessageTransferProtocol {
     String FROM = "from ";
     String SUBJECT = "subject ";
     String DATA = "data ";
+    String DATA_BLOCK = "data";
+    String DATA_END = ".";
+    String COMPRESS = "compress ";
+    String ZDATA = "zdata ";
+    String ZDATA_BLOCK = "zdata";
     String SEND = "send";
     String QUIT = "quit";
+    String BUSY = "error busy, try later";
 }
@@ -0,0 +1,84 @@
+package dslab.transfer;
+
+import java.util.logging.Logger;
+
+/**
+ * Decides whether the transfer server takes on more emails, based on how many deliveries are queued. Once the depth
+ * reaches the high watermark the server counts as saturated until it has drained to the low watermark, so it does
+ * not flap between the two states with every email.
+ */
+public class AdmissionController {
+
+    private static final Logger audit = Logger.getLogger("requests");
+
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final boolean pauseAccepting;
+    private boolean saturated;
+    private long saturatedSince;
+    private long saturatedMillis;
+    private long saturations;
+    private long accepted;
+    private long rejected;
+
+    /**
+     * @param highWatermark  the queued deliveries at which new emails are turned away
+     * @param lowWatermark   the queued deliveries at which new emails are taken again
+     * @param pauseAccepting whether to also stop accepting client connections while saturated
+     */
+    public AdmissionController(int highWatermark, int lowWatermark, boolean pauseAccepting) {
+        if (lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("low watermark must not exceed high watermark");
+        }
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.pauseAccepting = pauseAccepting;
+    }
+
+    /**
+     * Updates the state with the current depth.
+     *
+     * @param depth the number of queued deliveries
+     * @return true if the server is saturated
+     */
+    public synchronized boolean isSaturated(int depth) {
+        if (!saturated && depth >= highWatermark) {
+            saturated = true;
+            saturatedSince = System.currentTimeMillis();
+            saturations++;
+            audit.info("saturated with " + depth + " queued deliveries");
+        } else if (saturated && depth <= lowWatermark) {
+            saturated = false;
+            saturatedMillis += System.currentTimeMillis() - saturatedSince;
+            audit.info("no longer saturated with " + depth + " queued deliveries");
+        }
+        return saturated;
+    }
+
+    public boolean pausesAccepting() {
+        return pauseAccepting;
+    }
+
+    public synchronized void recordAccepted() {
+        accepted++;
+    }
+
+    public synchronized void recordRejected() {
+        rejected++;
+    }
+
+    /**
+     * Returns one line of admission statistics.
+     *
+     * @param depth the number of queued deliveries
+     * @return the statistics
+     */
+    public synchronized String statistics(int depth) {
+        boolean saturatedNow = isSaturated(depth);
+        long total = saturatedMillis + (saturatedNow ? System.currentTimeMillis() - saturatedSince : 0);
+        return String.format("state=%s depth=%d watermarks=%d/%d accepted=%d rejected=%d saturations=%d "
+                        + "saturated-time=%.1fs",
+                saturatedNow ? "saturated" : "open", depth, lowWatermark, highWatermark, accepted, rejected,
+                saturations, total / 1000.0);
+    }
+}
@@ -0,0 +1,217 @@
+package dslab.transfer;
+
+import dslab.dtos.Email;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+/**
+ * Collects the failed emails of every sender and sends them one error email listing them all, instead of one per
+ * failure, so an unreachable mailbox server does not cause a storm of error emails. The failures of a sender are
+ * collected for a short window after the first one, and a sender gets at most one error email per minimum interval;
+ * failures in between wait for the next one. An error email lists a limited number of failures and counts the rest.
+ * A failed email is only released from the spool once the error email reporting it has been queued, so collected
+ * failures survive a restart.
+ */
+public class BounceAggregator {
+
+    private static final Logger audit = Logger.getLogger("requests");
+
+    private final long windowMillis;
+    private final long minIntervalMillis;
+    private final int maxListed;
+    private final String mailer;
+    private final Map<String, Digest> digests = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "bounce-digest");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder omitted = new LongAdder();
+    private Predicate<Email> sink;
+
+    /**
+     * @param windowMillis      how long the failures of a sender are collected after the first one
+     * @param minIntervalMillis the least time between two error emails to the same sender
+     * @param maxListed         the failures listed in one error email at most
+     */
+    public BounceAggregator(long windowMillis, long minIntervalMillis, int maxListed) {
+        this.windowMillis = windowMillis;
+        this.minIntervalMillis = minIntervalMillis;
+        this.maxListed = maxListed;
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "localhost";
+        }
+        this.mailer = "mailer@" + host;
+    }
+
+    /**
+     * Starts sending error emails.
+     *
+     * @param sink queues an error email for delivery and returns false if it could not be spooled or queued, it must
+     *             not block
+     */
+    public synchronized void start(Predicate<Email> sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Adds a failed email to the next error email to its sender.
+     *
+     * @param email  the email that could not be delivered
+     * @param reason why
+     */
+    public void add(Email email, String reason) {
+        add(email, reason, () -> {
+        });
+    }
+
+    /**
+     * Adds a failed email to the next error email to its sender.
+     *
+     * @param email   the email that could not be delivered
+     * @param reason  why
+     * @param release releases the email from the spool once the error email has been queued
+     */
+    public void add(Email email, String reason, Runnable release) {
+        failures.increment();
+        String sender = email.getSender();
+        while (true) {
+            Digest digest = digests.computeIfAbsent(sender, Digest::new);
+            synchronized (digest) {
+                if (digest.removed) {
+                    continue;
+                }
+                if (digest.lines.size() < maxListed) {
+                    digest.lines.add(reason + ": " + email);
+                } else {
+                    digest.omitted++;
+                }
+                digest.releases.add(release);
+                if (!digest.scheduled) {
+                    long now = System.currentTimeMillis();
+                    schedule(digest, Math.max(windowMillis, digest.lastSent + minIntervalMillis - now));
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the sender of the error emails.
+     */
+    public String getMailer() {
+        return mailer;
+    }
+
+    /**
+     * Returns the counters and the failures waiting for each sender.
+     *
+     * @return the statistics by name
+     */
+    public Map<String, String> statistics() {
+        Map<String, String> statistics = new LinkedHashMap<>();
+        statistics.put("bounces", String.format("failures=%d error-emails=%d omitted=%d senders=%d",
+                failures.sum(), sent.sum(), omitted.sum(), digests.size()));
+        Map<String, String> pending = new TreeMap<>();
+        digests.forEach((sender, digest) -> {
+            synchronized (digest) {
+                if (!digest.lines.isEmpty()) {
+                    pending.put(sender, "pending=" + (digest.lines.size() + digest.omitted));
+                }
+            }
+        });
+        statistics.putAll(pending);
+        return statistics;
+    }
+
+    /**
+     * Stops sending error emails; collected failures stay in the spool and are reported again after the next start.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    private void schedule(Digest digest, long delayMillis) {
+        try {
+            timer.schedule(() -> flush(digest), delayMillis, TimeUnit.MILLISECONDS);
+            digest.scheduled = true;
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    private void flush(Digest digest) {
+        Email errorMail;
+        List<Runnable> releases;
+        synchronized (digest) {
+            digest.scheduled = false;
+            if (digest.lines.isEmpty()) {
+                // nothing failed since the last error email, the sender is forgotten
+                digest.removed = true;
+                digests.remove(digest.sender, digest);
+                return;
+            }
+            int count = digest.lines.size() + digest.omitted;
+            StringBuilder data = new StringBuilder(String.join("\n", digest.lines));
+            if (digest.omitted > 0) {
+                data.append("\nand ").append(digest.omitted).append(" more");
+            }
+            errorMail = new Email(new String[]{digest.sender}, mailer,
+                    count == 1 ? "Email couldn't be delivered" : count + " emails couldn't be delivered",
+                    data.toString());
+            omitted.add(digest.omitted);
+            releases = new ArrayList<>(digest.releases);
+            digest.lines.clear();
+            digest.releases.clear();
+            digest.omitted = 0;
+            digest.lastSent = System.currentTimeMillis();
+            // comes back empty after the interval to forget the sender, unless more failures came in
+            schedule(digest, minIntervalMillis);
+        }
+        audit.info("sending an error email to " + digest.sender + ": " + errorMail.getSubject());
+        Predicate<Email> sink;
+        synchronized (this) {
+            sink = this.sink;
+        }
+        if (sink != null && sink.test(errorMail)) {
+            sent.increment();
+            releases.forEach(Runnable::run);
+        }
+    }
+
+    /**
+     * The failures collected for one sender.
+     */
+    private static final class Digest {
+        private final String sender;
+        private final List<String> lines = new ArrayList<>();
+        private final List<Runnable> releases = new ArrayList<>();
+        private int omitted;
+        private long lastSent;
+        private boolean scheduled;
+        private boolean removed;
+
+        private Digest(String sender) {
+            this.sender = sender;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package dslab.transfer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Guards the deliveries to one mailbox server. The breaker opens after a number of consecutive failures, where a
+ * delivery slower than the latency limit counts as a failure too. While it is open, deliveries fail fast without
+ * touching the network. After the open time one probe delivery at a time is let through (half open); enough
+ * successful probes close the breaker again, a failed one opens it for another round.
+ */
+public class CircuitBreaker {
+
+    private static final Logger audit = Logger.getLogger("requests");
+
+    /**
+     * The states of a breaker.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String endpoint;
+    private final int failureThreshold;
+    private final long latencyLimitNanos;
+    private final long openNanos;
+    private final int probes;
+    private State state = State.CLOSED;
+    private int failures;
+    private int successfulProbes;
+    private long openedAt;
+    private long probeStartedAt;
+    private boolean probing;
+    private long opened;
+    private long rejected;
+
+    /**
+     * @param endpoint           the mailbox server as {@code host:port}
+     * @param failureThreshold   the consecutive failures that open the breaker
+     * @param latencyLimitMillis the delivery time above which a delivery counts as failed, 0 for no limit
+     * @param openMillis         how long the breaker stays open before it lets a probe through
+     * @param probes             the successful probes in a row that close the breaker
+     */
+    public CircuitBreaker(String endpoint, int failureThreshold, long latencyLimitMillis, long openMillis,
+                          int probes) {
+        if (failureThreshold < 1 || probes < 1) {
+            throw new IllegalArgumentException("failure threshold and probes must be at least 1");
+        }
+        this.endpoint = endpoint;
+        this.failureThreshold = failureThreshold;
+        this.latencyLimitNanos = latencyLimitMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(latencyLimitMillis)
+                : Long.MAX_VALUE;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.probes = probes;
+    }
+
+    /**
+     * Decides whether a delivery may contact the mailbox server now. Every delivery that is allowed must be
+     * followed by {@link #recordSuccess} or {@link #recordFailure}.
+     *
+     * @return false if the delivery should fail fast
+     */
+    public synchronized boolean allow() {
+        long now = System.nanoTime();
+        if (state == State.OPEN && now - openedAt >= openNanos) {
+            transition(State.HALF_OPEN, "open for " + TimeUnit.NANOSECONDS.toMillis(now - openedAt) + "ms");
+            successfulProbes = 0;
+            probing = false;
+        }
+        // a probe whose outcome never came back, e.g. because its consumer was stopped, does not block forever
+        if (state == State.HALF_OPEN && (!probing || now - probeStartedAt >= openNanos)) {
+            probing = true;
+            probeStartedAt = now;
+            return true;
+        }
+        if (state == State.CLOSED) {
+            return true;
+        }
+        rejected++;
+        return false;
+    }
+
+    /**
+     * Records a delivery the mailbox server answered, even if it rejected the email.
+     *
+     * @param nanos how long the delivery took
+     */
+    public synchronized void recordSuccess(long nanos) {
+        if (nanos > latencyLimitNanos) {
+            recordFailure(String.format("slow delivery %.1fms", nanos / 1e6));
+            return;
+        }
+        failures = 0;
+        if (state == State.HALF_OPEN) {
+            probing = false;
+            if (++successfulProbes >= probes) {
+                transition(State.CLOSED, successfulProbes + " successful probes");
+            }
+        }
+    }
+
+    /**
+     * Records a delivery that could not reach the mailbox server or timed out.
+     */
+    public synchronized void recordFailure() {
+        recordFailure("delivery failed");
+    }
+
+    /**
+     * Returns whether deliveries would be let through right now, without counting this as one.
+     */
+    public synchronized boolean isAvailable() {
+        return state != State.OPEN || System.nanoTime() - openedAt >= openNanos;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Returns one line with the state and counters.
+     */
+    public synchronized String statistics() {
+        String since = state == State.CLOSED ? "" : String.format(" for %dms",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - openedAt));
+        return String.format("%s%s consecutive-failures=%d opened=%d failed-fast=%d",
+                state.name().toLowerCase().replace('_', '-'), since, failures, opened, rejected);
+    }
+
+    private void recordFailure(String reason) {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            openedAt = System.nanoTime();
+            probing = false;
+            opened++;
+            transition(State.OPEN, state == State.HALF_OPEN ? "probe failed: " + reason
+                    : failures + " failures, last: " + reason);
+        }
+    }
+
+    private void transition(State next, String reason) {
+        audit.info("circuit breaker for " + endpoint + ": " + state + " -> " + next + " (" + reason + ")");
+        state = next;
+    }
+}
@@ -0,0 +1,137 @@
+package dslab.transfer;
+
+import dslab.dtos.Email;
+
+import java.util.List;
+
+/**
+ * One accepted email on its way to one mailbox server, together with the recipients that server hosts. Only those
+ * are sent to it, so no mailbox server has to look at the recipients of the others. If the domain of the
+ * recipients has several mailbox servers, a failed delivery may move to another one of them.
+ */
+public class Delivery {
+
+    private final Envelope envelope;
+    private final List<DeliveryQueue> candidates;
+    private volatile DeliveryQueue destination;
+    private final int recipientCount;
+    private final String recipients;
+    private int attempts;
+    private long firstFailure;
+    private volatile String server;
+    private volatile String failure;
+
+    /**
+     * @param envelope    the accepted email
+     * @param destination the queue of the mailbox server
+     * @param candidates  the queues of all mailbox servers of the recipients' domain, including the destination
+     * @param recipients  the recipients of the email that this mailbox server hosts
+     */
+    public Delivery(Envelope envelope, DeliveryQueue destination, List<DeliveryQueue> candidates,
+                    List<String> recipients) {
+        this.envelope = envelope;
+        this.destination = destination;
+        this.candidates = candidates;
+        this.recipientCount = recipients.size();
+        // joined once, retries send the same list again
+        this.recipients = String.join(",", recipients);
+    }
+
+    public Envelope getEnvelope() {
+        return envelope;
+    }
+
+    public Email getEmail() {
+        return envelope.getEmail();
+    }
+
+    public DeliveryQueue getDestination() {
+        return destination;
+    }
+
+    /**
+     * Moves the delivery to another mailbox server of the same domain, before it is queued there.
+     */
+    public void setDestination(DeliveryQueue destination) {
+        this.destination = destination;
+    }
+
+    public List<DeliveryQueue> getCandidates() {
+        return candidates;
+    }
+
+    /**
+     * Returns the size of the email's data in bytes, roughly, as the cost of the delivery.
+     */
+    public long getSize() {
+        return envelope.getSize();
+    }
+
+    public DeliveryLanes.Lane getLane() {
+        return envelope.getLane();
+    }
+
+    /**
+     * Returns the recipients hosted by this mailbox server, as sent with {@code to}.
+     */
+    public String getRecipients() {
+        return recipients;
+    }
+
+    public int getRecipientCount() {
+        return recipientCount;
+    }
+
+    /**
+     * Returns the number of failed attempts so far.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Returns the time of the first failed attempt in milliseconds, or 0 if there was none.
+     */
+    public long getFirstFailure() {
+        return firstFailure;
+    }
+
+    /**
+     * Records a failed attempt.
+     *
+     * @return the number of failed attempts including this one
+     */
+    public int recordFailure(long now) {
+        if (attempts++ == 0) {
+            firstFailure = now;
+        }
+        return attempts;
+    }
+
+    /**
+     * Records how the delivery ended, for the report stage.
+     *
+     * @param server  the local address and port the email was sent from, or null if it was not delivered
+     * @param failure why the delivery was given up, or null if it succeeded
+     */
+    public void setOutcome(String server, String failure) {
+        this.server = server;
+        this.failure = failure;
+    }
+
+    public String getServer() {
+        return server;
+    }
+
+    /**
+     * Returns why the delivery was given up, or null if it succeeded.
+     */
+    public String getFailure() {
+        return failure;
+    }
+
+    @Override
+    public String toString() {
+        return envelope.getEmail() + " -> " + destination.getEndpoint();
+    }
+}
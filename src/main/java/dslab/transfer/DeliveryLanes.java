@@ -0,0 +1,87 @@
+package dslab.transfer;
+
+import dslab.dtos.Email;
+import dslab.util.LatencyHistogram;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sorts accepted emails into delivery lanes and records per lane how long they take from acceptance until a mailbox
+ * server has them. Error emails are marked as bounces when they are created and come last, emails above a size or
+ * a number of recipients are bulk, all others are interactive. The lanes are recorded whatever the queue type, so their
+ * latencies can be compared with and without a {@link dslab.util.LaneQueue}.
+ */
+public class DeliveryLanes {
+
+    /**
+     * The lanes, most urgent first.
+     */
+    public enum Lane {
+        INTERACTIVE, BULK, BOUNCE
+    }
+
+    private final long bulkSize;
+    private final int bulkRecipients;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Lane.values().length];
+
+    /**
+     * @param bulkSize       the data size in bytes from which an email is bulk
+     * @param bulkRecipients the number of recipients from which an email is bulk
+     */
+    public DeliveryLanes(long bulkSize, int bulkRecipients) {
+        this.bulkSize = bulkSize;
+        this.bulkRecipients = bulkRecipients;
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Returns the lane of an accepted email that is not a bounce.
+     *
+     * @param envelope the accepted email
+     * @return {@link Lane#BULK} or {@link Lane#INTERACTIVE}
+     */
+    public Lane classify(Envelope envelope) {
+        return classify(envelope.getEmail());
+    }
+
+    /**
+     * Returns the lane an email that is not a bounce will be queued in.
+     *
+     * @param email the email
+     * @return {@link Lane#BULK} or {@link Lane#INTERACTIVE}
+     */
+    public Lane classify(Email email) {
+        return Envelope.sizeOf(email) >= bulkSize || email.getRecipients().length >= bulkRecipients
+                ? Lane.BULK : Lane.INTERACTIVE;
+    }
+
+    /**
+     * Records a delivery that reached its mailbox server.
+     *
+     * @param delivery the successful delivery
+     */
+    public void recordDelivered(Delivery delivery) {
+        latencies[delivery.getLane().ordinal()].record(System.nanoTime()
+                - delivery.getEnvelope().getAcceptedNanos());
+    }
+
+    /**
+     * Returns one line per lane with its latency percentiles and, if the queues have lanes, what is queued in it.
+     *
+     * @param depths     the deliveries queued per lane over all queues, or null
+     * @param promotions the deliveries per lane served ahead of their turn because they waited too long, or null
+     * @return the statistics by lane
+     */
+    public Map<String, String> statistics(int[] depths, long[] promotions) {
+        Map<String, String> statistics = new LinkedHashMap<>();
+        for (Lane lane : Lane.values()) {
+            int i = lane.ordinal();
+            statistics.put(lane.name().toLowerCase(), (depths != null
+                    ? "queued=" + depths[i] + " promoted=" + promotions[i] + " " : "") + latencies[i]);
+        }
+        return statistics;
+    }
+}
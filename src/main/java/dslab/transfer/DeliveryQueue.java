@@ -0,0 +1,315 @@
+package dslab.transfer;
+
+import dslab.util.FairQueue;
+import dslab.util.LaneQueue;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The emails waiting for delivery to one mailbox server, with their own depth limit and counters. It also tracks how
+ * many consumers serve it and how many should, so surplus consumers can retire once they are done with a batch.
+ * <p>
+ * Deliveries the queue has no room for, also because their sender or lane is at its limit, are parked next to it
+ * instead of holding up the route stage, and move into the queue as the consumers take deliveries out of it.
+ */
+public class DeliveryQueue {
+
+    private final String endpoint;
+    private final InetSocketAddress address;
+    private final int capacity;
+    private final BlockingQueue<Delivery> queue;
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong deliveryNanos = new AtomicLong();
+    private final AtomicInteger workers = new AtomicInteger();
+    private final Deque<Delivery> parked = new ArrayDeque<>();
+    private final Map<String, Integer> parkedSenders = new HashMap<>();
+    private final int[] parkedLanes = new int[DeliveryLanes.Lane.values().length];
+    private volatile int parkedCount;
+    private volatile int targetWorkers;
+    private volatile boolean compressed;
+    private volatile long latencyNanos;
+    private long lastSampleNanos = System.nanoTime();
+    private long lastSampleDelivered;
+
+    /**
+     * @param endpoint the mailbox server as {@code host:port}
+     * @param address  the resolved socket address of the mailbox server
+     * @param queue    an empty bounded queue to hold the deliveries
+     */
+    public DeliveryQueue(String endpoint, InetSocketAddress address, BlockingQueue<Delivery> queue) {
+        this.endpoint = endpoint;
+        this.address = address;
+        this.capacity = queue.remainingCapacity();
+        this.queue = queue;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Enqueues a delivery, or parks it if the queue has no room for it. Never waits.
+     */
+    public void enqueue(Delivery delivery) {
+        enqueued.incrementAndGet();
+        synchronized (parked) {
+            // parked before it is offered, so a consumer emptying the queue meanwhile sees it and moves it in
+            parked.addLast(delivery);
+            parkedSenders.merge(delivery.getEmail().getSender(), 1, Integer::sum);
+            parkedLanes[delivery.getLane().ordinal()]++;
+            parkedCount++;
+            unpark();
+        }
+    }
+
+    /**
+     * Enqueues a delivery if there is room for it.
+     *
+     * @return false if the queue is full
+     */
+    public boolean offer(Delivery delivery) {
+        boolean added = queue.offer(delivery);
+        if (added) {
+            enqueued.incrementAndGet();
+        }
+        return added;
+    }
+
+    public Delivery take() throws InterruptedException {
+        Delivery delivery = queue.take();
+        unparkIfAny();
+        return delivery;
+    }
+
+    public Delivery poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Delivery delivery = queue.poll(timeout, unit);
+        unparkIfAny();
+        return delivery;
+    }
+
+    public int drainTo(Collection<? super Delivery> batch, int maxElements) {
+        int drained = queue.drainTo(batch, maxElements);
+        unparkIfAny();
+        return drained;
+    }
+
+    /**
+     * Returns the queued deliveries of every sender, if the queue keeps track of them.
+     *
+     * @return the backlog by sender, empty for other queues
+     */
+    public Map<String, Integer> backlog() {
+        return queue instanceof FairQueue ? ((FairQueue<Delivery>) queue).backlog() : Collections.emptyMap();
+    }
+
+    /**
+     * Returns the queued deliveries of every lane, if the queue has lanes.
+     *
+     * @return the depth by lane ordinal, or null for other queues
+     */
+    public int[] laneDepths() {
+        return queue instanceof LaneQueue ? ((LaneQueue<Delivery>) queue).depths() : null;
+    }
+
+    /**
+     * Returns the deliveries of every lane that were served ahead of their turn, if the queue has lanes.
+     *
+     * @return the promotions by lane ordinal, or null for other queues
+     */
+    public long[] lanePromotions() {
+        return queue instanceof LaneQueue ? ((LaneQueue<Delivery>) queue).promotions() : null;
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the deliveries waiting for room in the queue.
+     */
+    public int getParked() {
+        return parkedCount;
+    }
+
+    /**
+     * Returns whether the queued and parked deliveries fill the queue.
+     */
+    public boolean isFull() {
+        return queue.size() + parkedCount >= capacity;
+    }
+
+    /**
+     * Returns whether the queue is full or already parks deliveries of the sender or the lane, because they are at
+     * their limit.
+     *
+     * @param sender the sender of an email
+     * @param lane   the lane of the email
+     */
+    public boolean isFull(String sender, DeliveryLanes.Lane lane) {
+        if (isFull()) {
+            return true;
+        }
+        if (parkedCount == 0) {
+            return false;
+        }
+        synchronized (parked) {
+            return parkedSenders.containsKey(sender) || parkedLanes[lane.ordinal()] > 0;
+        }
+    }
+
+    /**
+     * Records a successful delivery.
+     *
+     * @param nanos how long the delivery took
+     */
+    public void recordDelivered(long nanos) {
+        deliveryNanos.addAndGet(nanos);
+        delivered.incrementAndGet();
+        // a moving average that follows the recent deliveries, races between consumers only lose a sample
+        long average = latencyNanos;
+        latencyNanos = average == 0 ? nanos : average + (nanos - average) / 8;
+    }
+
+    public void recordFailed() {
+        failed.incrementAndGet();
+    }
+
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Returns the deliveries that were queued but are not finished yet, including those being sent right now.
+     */
+    public long getOutstanding() {
+        return enqueued.get() - delivered.get() - failed.get();
+    }
+
+    /**
+     * Returns the moving average of the recent delivery times, or 0 before the first delivery.
+     */
+    public long getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    /**
+     * Returns the total time spent on successful deliveries.
+     */
+    public long getDeliveryNanos() {
+        return deliveryNanos.get();
+    }
+
+    /**
+     * Returns whether the data of emails to this mailbox server is sent compressed.
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    public int getWorkers() {
+        return workers.get();
+    }
+
+    public int getTargetWorkers() {
+        return targetWorkers;
+    }
+
+    public void setTargetWorkers(int targetWorkers) {
+        this.targetWorkers = targetWorkers;
+    }
+
+    /**
+     * Counts a consumer that is about to start.
+     */
+    public void workerStarted() {
+        workers.incrementAndGet();
+    }
+
+    /**
+     * Counts a consumer that stopped for another reason than retiring.
+     */
+    public void workerStopped() {
+        workers.decrementAndGet();
+    }
+
+    /**
+     * Lets a consumer retire if more of them serve this queue than should.
+     *
+     * @return true if the calling consumer has to stop
+     */
+    public boolean retireWorker() {
+        int current;
+        do {
+            current = workers.get();
+            if (current <= targetWorkers) {
+                return false;
+            }
+        } while (!workers.compareAndSet(current, current - 1));
+        return true;
+    }
+
+    /**
+     * Returns the current depth and counters. The throughput covers the time since the previous call.
+     *
+     * @return one line of statistics
+     */
+    public synchronized String statistics() {
+        long now = System.nanoTime();
+        long deliveredNow = delivered.get();
+        double seconds = Math.max((now - lastSampleNanos) / 1e9, 1e-3);
+        double throughput = (deliveredNow - lastSampleDelivered) / seconds;
+        lastSampleNanos = now;
+        lastSampleDelivered = deliveredNow;
+        return String.format("depth=%d/%d parked=%d enqueued=%d delivered=%d failed=%d throughput=%.1f/s",
+                queue.size(), capacity, parkedCount, enqueued.get(), deliveredNow, failed.get(), throughput);
+    }
+
+    private void unparkIfAny() {
+        if (parkedCount > 0) {
+            synchronized (parked) {
+                unpark();
+            }
+        }
+    }
+
+    /**
+     * Moves parked deliveries into the queue in the order they came, skipping those it still has no room for.
+     */
+    private void unpark() {
+        Iterator<Delivery> iterator = parked.iterator();
+        while (iterator.hasNext() && queue.remainingCapacity() > 0) {
+            Delivery delivery = iterator.next();
+            if (queue.offer(delivery)) {
+                iterator.remove();
+                parkedSenders.computeIfPresent(delivery.getEmail().getSender(), (s, n) -> n > 1 ? n - 1 : null);
+                parkedLanes[delivery.getLane().ordinal()]--;
+                parkedCount--;
+            }
+        }
+    }
+}
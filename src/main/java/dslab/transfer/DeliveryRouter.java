@@ -0,0 +1,671 @@
+package dslab.transfer;
+
+import dslab.dtos.Email;
+import dslab.dtos.MessageBody;
+import dslab.util.LatencyHistogram;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resolves the mailbox servers of an accepted email and puts it into the delivery queue of each of them. Every
+ * mailbox server listed in domains.properties gets its own queue and its own consumers, so a slow server only
+ * backs up its own mail. The routing table can be replaced while the server runs; queues of mailbox servers that
+ * were removed from it are still drained.
+ * <p>
+ * An email passes through the stages ingest (the DMTP session admits and spools it), validate (its sender domain
+ * is checked and its lane chosen), route (it is split by mailbox server and queued), deliver (the consumers of the
+ * delivery queues) and report (monitoring, retry bookkeeping, error emails and the spool). Each {@link Stage} has
+ * its own threads and bounded buffer, so a stage that falls behind holds up the one before it. The route stage never
+ * waits for a full delivery queue, so one slow mailbox server cannot hold up the others; its deliveries are parked
+ * instead, and admission counts them together with the stage buffers, so the sessions are turned away before the
+ * stages fill up.
+ */
+public class DeliveryRouter {
+
+    private static final Logger audit = Logger.getLogger("requests");
+    private static final Logger errors = Logger.getLogger("errors");
+
+    private final Map<String, DeliveryQueue> destinations = new ConcurrentHashMap<>();
+    private final Supplier<BlockingQueue<Delivery>> queues;
+    private final DeliveryWorkerPool workers;
+    private final MailSpool spool;
+    private final RetryScheduler retries;
+    private final AdmissionController admission;
+    private final Set<String> compressedDomains;
+    private final FanoutStatistics fanout = new FanoutStatistics();
+    private final LoadBalancer balancer;
+    private final DeliveryLanes lanes;
+    private final BounceAggregator bounces;
+    private final Stage<Envelope> validation;
+    private final Stage<Envelope> routing;
+    private final Stage<Delivery> reporting;
+    private final LatencyHistogram ingest = new LatencyHistogram();
+    private volatile RoutingTable routes;
+    private int reloads;
+    private DmtpConnectionPool connections;
+    private MonitoringReporter monitoring;
+    private int batchSize;
+    private long lingerMillis;
+
+    /**
+     * @param routes                the mailbox server of every domain
+     * @param queues                creates the bounded queue of every mailbox server
+     * @param workers               runs and sizes the consumers of every mailbox server
+     * @param spool                 the journal accepted emails are written to before they are queued, or null to
+     *                              keep them in memory only
+     * @param retries               the scheduler for deliveries whose mailbox server could not be reached
+     * @param admission             decides whether new emails are taken while deliveries are piling up
+     * @param compressedDomains     the domains whose mailbox servers are sent the data of emails compressed,
+     *                              {@code *} for all
+     * @param balancer              picks one of the mailbox servers of a domain
+     * @param lanes                 sorts emails into delivery lanes and records their latencies
+     * @param bounces               collects the failures of every sender into one error email
+     * @param validation            the stage checking the sender of accepted emails
+     * @param routing               the stage putting valid emails into the delivery queues
+     * @param reporting             the stage recording finished deliveries
+     */
+    public DeliveryRouter(RoutingTable routes, Supplier<BlockingQueue<Delivery>> queues, DeliveryWorkerPool workers,
+                          MailSpool spool, RetryScheduler retries, AdmissionController admission,
+                          Set<String> compressedDomains, LoadBalancer balancer, DeliveryLanes lanes,
+                          BounceAggregator bounces, Stage<Envelope> validation, Stage<Envelope> routing,
+                          Stage<Delivery> reporting) {
+        this.routes = routes;
+        this.queues = queues;
+        this.workers = workers;
+        this.spool = spool;
+        this.retries = retries;
+        this.admission = admission;
+        this.compressedDomains = compressedDomains;
+        this.balancer = balancer;
+        this.lanes = lanes;
+        this.bounces = bounces;
+        this.validation = validation;
+        this.routing = routing;
+        this.reporting = reporting;
+        routes.addresses().forEach(this::addDestination);
+        applyCompression(routes);
+    }
+
+    /**
+     * Starts the stages and the consumers of every destination, and queues the emails the spool recovered.
+     *
+     * @throws IOException if the spool cannot be opened
+     */
+    public void start(DmtpConnectionPool connections, MonitoringReporter monitoring, int batchSize, long lingerMillis)
+            throws IOException {
+        synchronized (this) {
+            this.connections = connections;
+            this.monitoring = monitoring;
+            this.batchSize = batchSize;
+            this.lingerMillis = lingerMillis;
+            workers.start(destination -> new TransferConsumerThread(destination, this, connections,
+                    this.batchSize, this.lingerMillis));
+        }
+        validation.start(this::validate);
+        routing.start(this::route);
+        reporting.start(this::report);
+        bounces.start(this::queueBounce);
+        if (spool != null) {
+            for (Map.Entry<Long, Email> recovered : spool.open().entrySet()) {
+                Envelope envelope = new Envelope(recovered.getValue(), recovered.getKey());
+                if (envelope.getEmail().getSender().equals(bounces.getMailer())) {
+                    // no domain knows the sender of error emails, so they would not pass the validate stage
+                    if (!queueBounce(envelope)) {
+                        audit.log(Level.WARNING, "error email " + envelope.getEmail() + " stays in the spool");
+                    }
+                } else {
+                    validation.submit(envelope);
+                }
+            }
+        }
+    }
+
+    /**
+     * Spools the email, if enabled, and hands it to the validate stage. Never waits for a stage, since in NIO mode
+     * this runs on the selector thread: the email is turned away instead if the server is saturated, one of its
+     * delivery queues is full or already parks deliveries of its sender or lane, or the validate stage is full.
+     *
+     * @param email the received email
+     * @return false if the email was not admitted and the client should try again later
+     * @throws IOException          if the email cannot be written to the spool
+     * @throws InterruptedException if interrupted while waiting for the spool
+     */
+    public boolean route(Email email) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        if (!admit(email)) {
+            admission.recordRejected();
+            return false;
+        }
+        long spoolId = spool != null ? spool.append(email) : -1;
+        if (!validation.offer(new Envelope(email, spoolId))) {
+            // the session keeps the email and its data file for the client to try again
+            if (spoolId >= 0) {
+                spool.complete(spoolId);
+            }
+            admission.recordRejected();
+            return false;
+        }
+        admission.recordAccepted();
+        ingest.record(System.nanoTime() - start);
+        return true;
+    }
+
+    /**
+     * Replaces the routing table. Mailbox servers that are new in it get a queue and consumers.
+     *
+     * @param routes the new routing table
+     */
+    public synchronized void reload(RoutingTable routes) {
+        routes.addresses().forEach((endpoint, address) -> {
+            if (!destinations.containsKey(endpoint)) {
+                addDestination(endpoint, address);
+            }
+        });
+        applyCompression(routes);
+        if (connections != null) {
+            // a mailbox server may have been upgraded, let it negotiate compression again
+            connections.resetCompression();
+        }
+        this.routes = routes;
+        reloads++;
+        audit.info("routing table reloaded with " + routes.domains().size() + " domains");
+    }
+
+    /**
+     * Returns the current routing table.
+     */
+    public RoutingTable getRoutes() {
+        return routes;
+    }
+
+    /**
+     * Returns how often the routing table was replaced.
+     */
+    public synchronized int getReloads() {
+        return reloads;
+    }
+
+    /**
+     * Returns whether the listener should stop accepting client connections for now.
+     */
+    public boolean isAcceptingPaused() {
+        return admission.pausesAccepting() && admission.isSaturated(depth());
+    }
+
+    /**
+     * Returns the number of emails waiting in the validate and route stages and of deliveries waiting in all queues,
+     * parked ones included.
+     */
+    public int depth() {
+        int depth = validation.getBuffered() + routing.getBuffered();
+        for (DeliveryQueue destination : destinations.values()) {
+            depth += destination.size() + destination.getParked();
+        }
+        return depth;
+    }
+
+    /**
+     * Hands a delivery that reached its mailbox server to the report stage.
+     *
+     * @param delivery the successful delivery
+     * @param server   the local address and port the email was sent from
+     */
+    public void delivered(Delivery delivery, String server) {
+        delivery.setOutcome(server, null);
+        reporting.submit(delivery);
+    }
+
+    /**
+     * Schedules another attempt of a delivery whose mailbox server could not be reached, or bounces it once it has
+     * been failing for too long.
+     *
+     * @param delivery the failed delivery
+     */
+    public void retry(Delivery delivery) {
+        DeliveryQueue failed = delivery.getDestination();
+        DeliveryQueue next = balancer.choose(delivery.getCandidates(), failed);
+        delivery.setDestination(next);
+        // another mailbox server of the domain that is up takes the email right away, otherwise it waits
+        if (next != failed && balancer.isAvailable(next.getEndpoint()) && next.offer(delivery)) {
+            audit.info("failing over " + delivery + " from " + failed.getEndpoint());
+            return;
+        }
+        if (!retries.schedule(delivery)) {
+            audit.log(Level.WARNING, "giving up on " + delivery + " after " + delivery.getAttempts() + " attempts");
+            failed(delivery, "unreachable after " + delivery.getAttempts() + " attempts");
+        }
+    }
+
+    /**
+     * Hands a delivery that was given up, e.g. because the mailbox server rejected the email, to the report stage.
+     * The sender learns about it once all deliveries of the email are finished.
+     *
+     * @param delivery the failed delivery
+     * @param reason   why it failed
+     */
+    public void failed(Delivery delivery, String reason) {
+        delivery.setOutcome(null, reason);
+        reporting.submit(delivery);
+    }
+
+    /**
+     * The report stage: records a finished delivery with the monitoring server, the retry scheduler and the lanes,
+     * or its failure with its email.
+     */
+    private void report(Delivery delivery) {
+        String endpoint = delivery.getDestination().getEndpoint();
+        if (delivery.getFailure() == null) {
+            monitoring.report(delivery.getServer(), delivery.getEmail().getSender());
+            retries.recordDelivered(delivery);
+            lanes.recordDelivered(delivery);
+            delivery.getEnvelope().recordDelivered(delivery.getRecipients(), endpoint);
+        } else {
+            delivery.getEnvelope().recordFailed(delivery.getRecipients(), endpoint, delivery.getFailure());
+        }
+        complete(delivery);
+    }
+
+    /**
+     * Records that one delivery of an email is finished. Once all of them are, the email is released from the spool
+     * and its data file, if any, is deleted; if some of them failed, only after the error email listing them has been
+     * queued.
+     *
+     * @param delivery the finished delivery
+     */
+    private void complete(Delivery delivery) {
+        Envelope envelope = delivery.getEnvelope();
+        if (envelope.completeDelivery()) {
+            fanout.record(envelope);
+            Map<String, String> failures = envelope.getFailures();
+            if (!failures.isEmpty()) {
+                bounce(envelope, "Email couldn't be delivered to " + failures);
+            } else {
+                release(envelope);
+            }
+        }
+    }
+
+    /**
+     * The validate stage: drops emails from unknown sender domains and chooses the lane of the others.
+     */
+    private void validate(Envelope envelope) {
+        String senderDomain = domainOf(envelope.getEmail().getSender());
+        if (routes.lookup(senderDomain) == null) {
+            audit.log(Level.SEVERE, "sender " + senderDomain + " does not exist");
+            release(envelope);
+            return;
+        }
+        envelope.setLane(lanes.classify(envelope));
+        routing.submit(envelope);
+    }
+
+    /**
+     * The route stage: puts the email into the queue of every mailbox server it is addressed to, or parks it next to
+     * those that are full.
+     */
+    private void route(Envelope envelope) {
+        Email email = envelope.getEmail();
+        RoutingTable routes = this.routes;
+        Map<List<DeliveryQueue>, List<String>> partitions = new LinkedHashMap<>();
+        Set<String> unknownDomains = new HashSet<>();
+        partitionRecipients(routes, email, partitions, unknownDomains);
+
+        if (!partitions.isEmpty()) {
+            for (String domain : unknownDomains) {
+                envelope.recordFailed(domain, domain, "unknown domain");
+            }
+            envelope.expectDeliveries(partitions.size());
+            for (Map.Entry<List<DeliveryQueue>, List<String>> partition : partitions.entrySet()) {
+                DeliveryQueue destination = balancer.choose(partition.getKey(), null);
+                destination.enqueue(new Delivery(envelope, destination, partition.getKey(), partition.getValue()));
+            }
+        } else {
+            audit.log(Level.SEVERE, "No given domain was found");
+            bounce(envelope, "Email couldn't be sent to these unknown domains: " + unknownDomains);
+        }
+    }
+
+    /**
+     * Adds an email to the next error email to its sender, which lists all failures of a short window. The email
+     * is released once that error email has been queued. A failed error email is only logged and released.
+     *
+     * @param envelope the email that could not be delivered
+     * @param message  the reason
+     */
+    private void bounce(Envelope envelope, String message) {
+        if (envelope.getEmail().getSender().equals(bounces.getMailer())) {
+            audit.log(Level.WARNING, "dropping error email " + envelope.getEmail() + ": " + message);
+            release(envelope);
+            return;
+        }
+        bounces.add(envelope.getEmail(), message, () -> release(envelope));
+    }
+
+    /**
+     * Spools an error email, if enabled, and queues it in the bounce lane.
+     *
+     * @param errorMail the error email to the sender of failed emails
+     * @return false if the error email could not be spooled or queued, so the failed emails have to stay in the spool
+     */
+    private boolean queueBounce(Email errorMail) {
+        try {
+            Envelope envelope = new Envelope(errorMail, spool != null ? spool.append(errorMail) : -1);
+            if (queueBounce(envelope)) {
+                return true;
+            }
+            // the failed emails stay in the spool and are reported again after the next start
+            release(envelope);
+        } catch (IOException e) {
+            errors.log(Level.SEVERE, e.getMessage(), e);
+        } catch (InterruptedException e) {
+            errors.log(Level.SEVERE, "Interrupted while spooling error email", e);
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Queues an error email in the bounce lane. Never blocks.
+     *
+     * @param envelope the error email to the sender of failed emails
+     * @return false if the recipient's domain has no mailbox server or its queue is full
+     */
+    private boolean queueBounce(Envelope envelope) {
+        String recipient = envelope.getEmail().getRecipients()[0];
+        List<DeliveryQueue> candidates = destinationsOf(routes, domainOf(recipient));
+        if (candidates == null) {
+            audit.log(Level.WARNING, "cannot queue error email to " + recipient + ", unknown domain");
+            return false;
+        }
+        DeliveryQueue destination = balancer.choose(candidates, null);
+        envelope.setLane(DeliveryLanes.Lane.BOUNCE);
+        envelope.expectDeliveries(1);
+        if (!destination.offer(new Delivery(envelope, destination, candidates, List.of(recipient)))) {
+            audit.log(Level.WARNING, "cannot queue error email to " + recipient + ", queue is full");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns one line of queue statistics per mailbox server.
+     *
+     * @return the statistics by endpoint
+     */
+    public Map<String, String> statistics() {
+        Map<String, String> statistics = new TreeMap<>();
+        destinations.forEach((endpoint, destination) -> statistics.put(endpoint, destination.statistics()));
+        return Collections.unmodifiableMap(statistics);
+    }
+
+    /**
+     * Returns how long emails took until all their deliveries were finished, compared to their slowest and to all
+     * their deliveries one after another.
+     *
+     * @return the statistics by name
+     */
+    public Map<String, String> fanoutStatistics() {
+        return fanout.statistics();
+    }
+
+    /**
+     * Returns one line per domain with the state of each of its mailbox servers, and how often the balancer picked
+     * them.
+     *
+     * @return the statistics by domain, and the failovers by {@code failovers}
+     */
+    public Map<String, String> endpointStatistics() {
+        Map<String, Long> chosen = balancer.statistics();
+        Map<String, String> statistics = new TreeMap<>();
+        routes.domains().forEach((domain, endpoints) -> {
+            StringBuilder line = new StringBuilder(balancer.getPolicy().name().toLowerCase().replace('_', '-'));
+            for (String endpoint : endpoints) {
+                DeliveryQueue destination = destinations.get(endpoint);
+                line.append(String.format(" %s[%s outstanding=%d latency=%.1fms chosen=%d]", endpoint,
+                        balancer.isAvailable(endpoint) ? "up" : "down", destination.getOutstanding(),
+                        destination.getLatencyNanos() / 1e6, chosen.getOrDefault(endpoint, 0L)));
+            }
+            statistics.put(domain, line.toString());
+        });
+        statistics.put("failovers", String.valueOf(chosen.get("failovers")));
+        return statistics;
+    }
+
+    /**
+     * Returns the queued deliveries of every sender over all mailbox servers, the largest backlog first.
+     *
+     * @return one line per sender with the total and the backlog per mailbox server
+     */
+    public Map<String, String> backlogStatistics() {
+        Map<String, Map<String, Integer>> bySender = new HashMap<>();
+        Map<String, Integer> totals = new HashMap<>();
+        destinations.forEach((endpoint, destination) -> destination.backlog().forEach((sender, queued) -> {
+            bySender.computeIfAbsent(sender, s -> new TreeMap<>()).put(endpoint, queued);
+            totals.merge(sender, queued, Integer::sum);
+        }));
+        List<String> senders = new ArrayList<>(totals.keySet());
+        senders.sort(Comparator.comparing(totals::get, Comparator.reverseOrder()));
+        Map<String, String> statistics = new LinkedHashMap<>();
+        for (String sender : senders) {
+            statistics.put(sender, "queued=" + totals.get(sender) + " " + bySender.get(sender));
+        }
+        return statistics;
+    }
+
+    /**
+     * Returns the latency percentiles of every delivery lane and, if the queues have lanes, their depth and
+     * promotions over all mailbox servers.
+     *
+     * @return the statistics by lane
+     */
+    public Map<String, String> laneStatistics() {
+        int[] depths = null;
+        long[] promotions = null;
+        for (DeliveryQueue destination : destinations.values()) {
+            int[] queued = destination.laneDepths();
+            long[] promoted = destination.lanePromotions();
+            if (queued == null) {
+                continue;
+            }
+            if (depths == null) {
+                depths = new int[queued.length];
+                promotions = new long[promoted.length];
+            }
+            for (int i = 0; i < queued.length; i++) {
+                depths[i] += queued[i];
+                promotions[i] += promoted[i];
+            }
+        }
+        return lanes.statistics(depths, promotions);
+    }
+
+    /**
+     * Returns the threads, buffer, counters and latencies of every stage an email passes through.
+     *
+     * @return the statistics by stage
+     */
+    public Map<String, String> stageStatistics() {
+        Map<String, String> statistics = new LinkedHashMap<>();
+        statistics.put("ingest", String.format("accepted=%d service=%.1f/%.1fms", ingest.getCount(),
+                ingest.percentileNanos(50) / 1e6, ingest.percentileNanos(99) / 1e6));
+        statistics.put(validation.getName(), validation.statistics());
+        statistics.put(routing.getName(), routing.statistics());
+        int workers = 0;
+        int queued = 0;
+        int parked = 0;
+        long delivered = 0;
+        long failed = 0;
+        for (DeliveryQueue destination : destinations.values()) {
+            workers += destination.getWorkers();
+            queued += destination.size();
+            parked += destination.getParked();
+            delivered += destination.getDelivered();
+            failed += destination.getFailed();
+        }
+        statistics.put("deliver", String.format("queues=%d workers=%d queued=%d parked=%d delivered=%d failed=%d",
+                destinations.size(), workers, queued, parked, delivered, failed));
+        statistics.put(reporting.getName(), reporting.statistics());
+        return statistics;
+    }
+
+    /**
+     * Returns the error email counters and the failures waiting for each sender.
+     *
+     * @return the statistics by name
+     */
+    public Map<String, String> bounceStatistics() {
+        return bounces.statistics();
+    }
+
+    /**
+     * Returns the admission state and counters.
+     *
+     * @return the statistics
+     */
+    public String admissionStatistics() {
+        return admission.statistics(depth());
+    }
+
+    /**
+     * Returns the retry counters and the attempts and age of the waiting deliveries.
+     *
+     * @return the statistics by name
+     */
+    public Map<String, String> retryStatistics() {
+        return retries.statistics();
+    }
+
+    /**
+     * Returns the spool statistics, if the spool is enabled.
+     *
+     * @return the statistics or null
+     */
+    public String spoolStatistics() {
+        return spool != null ? spool.statistics() : null;
+    }
+
+    /**
+     * Stops all consumers and retries and closes the spool. Undelivered emails stay in the spool for the next start.
+     */
+    public void shutdown() {
+        validation.shutdown();
+        routing.shutdown();
+        workers.shutdown();
+        reporting.shutdown();
+        retries.shutdown();
+        bounces.shutdown();
+        if (spool != null) {
+            spool.close();
+        }
+    }
+
+    private void release(Envelope envelope) {
+        MessageBody body = envelope.getEmail().getBody();
+        if (body != null) {
+            try {
+                body.delete();
+            } catch (IOException e) {
+                errors.log(Level.WARNING, "Could not delete " + body + ": " + e.getMessage(), e);
+            }
+        }
+        if (!envelope.isSpooled()) {
+            return;
+        }
+        try {
+            spool.complete(envelope.getSpoolId());
+        } catch (IOException e) {
+            errors.log(Level.SEVERE, "Could not mark email as delivered in spool: " + e.getMessage(), e);
+        }
+    }
+
+    private boolean admit(Email email) {
+        if (admission.isSaturated(depth())) {
+            return false;
+        }
+        RoutingTable routes = this.routes;
+        String sender = email.getSender();
+        DeliveryLanes.Lane lane = lanes.classify(email);
+        for (String recipient : email.getRecipients()) {
+            List<DeliveryQueue> candidates = destinationsOf(routes, domainOf(recipient));
+            if (candidates != null && candidates.stream().allMatch(destination -> destination.isFull(sender, lane))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addDestination(String endpoint, InetSocketAddress address) {
+        workers.add(destinations.computeIfAbsent(endpoint, e -> new DeliveryQueue(endpoint, address, queues.get())));
+    }
+
+    private void applyCompression(RoutingTable routes) {
+        // a mailbox server serving several domains compresses if one of them asks for it
+        Set<String> compressed = new HashSet<>();
+        routes.domains().forEach((domain, endpoints) -> {
+            if (compressedDomains.contains("*") || compressedDomains.contains(domain)) {
+                compressed.addAll(endpoints);
+            }
+        });
+        destinations.forEach((endpoint, destination) -> destination.setCompressed(compressed.contains(endpoint)));
+    }
+
+    private List<DeliveryQueue> destinationsOf(RoutingTable routes, String domain) {
+        List<String> endpoints = routes.lookup(domain);
+        if (endpoints == null) {
+            return null;
+        }
+        if (endpoints.size() == 1) {
+            return List.of(destinations.get(endpoints.get(0)));
+        }
+        List<DeliveryQueue> candidates = new ArrayList<>(endpoints.size());
+        for (String endpoint : endpoints) {
+            candidates.add(destinations.get(endpoint));
+        }
+        return candidates;
+    }
+
+    private static String domainOf(String address) {
+        return address.substring(address.indexOf('@') + 1);
+    }
+
+    /**
+     * Splits the recipients of an email by the mailbox servers hosting them, resolving every domain only once.
+     */
+    private void partitionRecipients(RoutingTable routes, Email email,
+                                     Map<List<DeliveryQueue>, List<String>> partitions, Set<String> unknownDomains) {
+        Map<String, List<String>> byDomain = new HashMap<>();
+        for (String recipient : email.getRecipients()) {
+            String recipientDomain = domainOf(recipient);
+            List<String> partition = byDomain.get(recipientDomain);
+            if (partition == null && !unknownDomains.contains(recipientDomain)) {
+                List<DeliveryQueue> candidates = destinationsOf(routes, recipientDomain);
+                if (candidates == null) {
+                    unknownDomains.add(recipientDomain);
+                    continue;
+                }
+                // domains served by the same mailbox servers share their partition
+                partition = partitions.computeIfAbsent(candidates, d -> new ArrayList<>());
+                byDomain.put(recipientDomain, partition);
+            }
+            if (partition != null) {
+                partition.add(recipient);
+            }
+        }
+    }
+}
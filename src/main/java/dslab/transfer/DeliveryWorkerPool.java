@@ -0,0 +1,238 @@
+package dslab.transfer;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the consumers of every delivery queue on an executor of their own and adapts how many each queue gets. At a
+ * fixed interval a controller looks at the depth of every queue and the latency of its deliveries since the last
+ * look: a backlog that persists adds one consumer, deliveries slower than the latency target or failing altogether
+ * halve them (additive increase, multiplicative decrease), and a queue that stays idle gives one back. Each decision
+ * needs several consecutive samples, so a single burst does not resize the pool.
+ */
+public class DeliveryWorkerPool {
+
+    private static final Logger audit = Logger.getLogger("requests");
+    private static final Logger errors = Logger.getLogger("errors");
+
+    private static final int BACKLOG_SAMPLES = 3;
+    private static final int CONGESTION_SAMPLES = 2;
+    private static final int IDLE_SAMPLES = 10;
+
+    private final int initialWorkers;
+    private final int minWorkers;
+    private final int maxWorkers;
+    private final long intervalMillis;
+    private final long latencyTargetNanos;
+    private final AtomicInteger threads = new AtomicInteger();
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "delivery-worker-" + threads.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledExecutorService controller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "delivery-worker-control");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, Control> controls = new ConcurrentHashMap<>();
+    private Function<DeliveryQueue, Runnable> consumers;
+
+    /**
+     * @param initialWorkers      the consumers a queue starts with
+     * @param minWorkers          the fewest consumers a queue is shrunk to
+     * @param maxWorkers          the most consumers a queue is grown to
+     * @param intervalMillis      how often the sizes are adjusted
+     * @param latencyTargetMillis the average delivery time above which a mailbox server counts as overloaded
+     */
+    public DeliveryWorkerPool(int initialWorkers, int minWorkers, int maxWorkers, long intervalMillis,
+                              long latencyTargetMillis) {
+        if (minWorkers < 1 || minWorkers > maxWorkers) {
+            throw new IllegalArgumentException("worker limits must satisfy 1 <= min <= max");
+        }
+        this.initialWorkers = Math.max(minWorkers, Math.min(maxWorkers, initialWorkers));
+        this.minWorkers = minWorkers;
+        this.maxWorkers = maxWorkers;
+        this.intervalMillis = intervalMillis;
+        this.latencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(latencyTargetMillis);
+    }
+
+    /**
+     * Starts adjusting the pool; queues added from now on get consumers right away.
+     *
+     * @param consumers creates a consumer for a queue
+     */
+    public synchronized void start(Function<DeliveryQueue, Runnable> consumers) {
+        this.consumers = consumers;
+        controls.values().forEach(control -> resize(control, initialWorkers, "start"));
+        controller.scheduleWithFixedDelay(this::adjust, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds a queue, starting its consumers if the pool is already running.
+     *
+     * @param destination the delivery queue
+     */
+    public synchronized void add(DeliveryQueue destination) {
+        Control control = controls.computeIfAbsent(destination.getEndpoint(), e -> new Control(destination));
+        if (consumers != null) {
+            resize(control, initialWorkers, "start");
+        }
+    }
+
+    /**
+     * Sets the number of consumers of one or all queues. The controller goes on adjusting from there.
+     *
+     * @param endpoint the mailbox server as {@code host:port}, or null for all
+     * @param workers  the number of consumers
+     * @return false if the endpoint is unknown
+     * @throws IllegalArgumentException if the number is outside of the configured limits
+     */
+    public synchronized boolean resize(String endpoint, int workers) {
+        if (workers < minWorkers || workers > maxWorkers) {
+            throw new IllegalArgumentException("workers must be between " + minWorkers + " and " + maxWorkers);
+        }
+        if (endpoint == null) {
+            controls.values().forEach(control -> resize(control, workers, "shell"));
+            return true;
+        }
+        Control control = controls.get(endpoint);
+        if (control == null) {
+            return false;
+        }
+        resize(control, workers, "shell");
+        return true;
+    }
+
+    /**
+     * Returns one line of worker statistics per mailbox server.
+     *
+     * @return the statistics by endpoint
+     */
+    public Map<String, String> statistics() {
+        Map<String, String> statistics = new TreeMap<>();
+        controls.forEach((endpoint, control) -> statistics.put(endpoint, String.format(
+                "workers=%d target=%d limits=%d..%d latency=%.1fms grown=%d shrunk=%d",
+                control.destination.getWorkers(), control.destination.getTargetWorkers(), minWorkers, maxWorkers,
+                control.latencyNanos / 1e6, control.grown, control.shrunk)));
+        return Collections.unmodifiableMap(statistics);
+    }
+
+    /**
+     * Stops adjusting and interrupts all consumers.
+     */
+    public void shutdown() {
+        controller.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    synchronized void adjust() {
+        try {
+            controls.values().forEach(this::adjust);
+        } catch (RuntimeException e) {
+            errors.log(Level.SEVERE, "Could not adjust delivery workers: " + e.getMessage(), e);
+        }
+    }
+
+    private void adjust(Control control) {
+        DeliveryQueue destination = control.destination;
+        long delivered = destination.getDelivered() - control.delivered;
+        long failed = destination.getFailed() - control.failed;
+        long nanos = destination.getDeliveryNanos() - control.nanos;
+        control.delivered += delivered;
+        control.failed += failed;
+        control.nanos += nanos;
+        if (delivered > 0) {
+            control.latencyNanos = nanos / delivered;
+        }
+
+        int workers = destination.getTargetWorkers();
+        int depth = destination.size();
+        boolean congested = (delivered > 0 && control.latencyNanos > latencyTargetNanos)
+                || (failed > 0 && delivered == 0);
+        if (congested) {
+            control.streak(Trend.CONGESTED);
+            if (control.samples >= CONGESTION_SAMPLES && workers > minWorkers) {
+                resize(control, Math.max(minWorkers, workers / 2), failed > 0 && delivered == 0
+                        ? "deliveries failing" : String.format("latency %.1fms", control.latencyNanos / 1e6));
+            }
+        } else if (depth > workers) {
+            control.streak(Trend.BACKLOGGED);
+            if (control.samples >= BACKLOG_SAMPLES && workers < maxWorkers) {
+                resize(control, workers + 1, depth + " queued");
+            }
+        } else if (depth == 0 && delivered == 0) {
+            control.streak(Trend.IDLE);
+            if (control.samples >= IDLE_SAMPLES && workers > minWorkers) {
+                resize(control, workers - 1, "idle");
+            }
+        } else {
+            control.streak(Trend.STEADY);
+        }
+    }
+
+    private void resize(Control control, int workers, String reason) {
+        DeliveryQueue destination = control.destination;
+        int previous = destination.getTargetWorkers();
+        destination.setTargetWorkers(workers);
+        control.samples = 0;
+        if (previous != 0 && previous != workers) {
+            if (workers > previous) {
+                control.grown++;
+            } else {
+                control.shrunk++;
+            }
+            audit.info("delivery workers for " + destination.getEndpoint() + ": " + previous + " -> " + workers
+                    + " (" + reason + ")");
+        }
+        // surplus consumers retire on their own once they are done with their batch
+        while (destination.getWorkers() < workers) {
+            destination.workerStarted();
+            try {
+                executor.submit(consumers.apply(destination));
+            } catch (RejectedExecutionException e) {
+                destination.workerStopped();
+                return;
+            }
+        }
+    }
+
+    private enum Trend {
+        CONGESTED, BACKLOGGED, IDLE, STEADY
+    }
+
+    /**
+     * The controller's view of one queue.
+     */
+    private static final class Control {
+        private final DeliveryQueue destination;
+        private long delivered;
+        private long failed;
+        private long nanos;
+        private long latencyNanos;
+        private Trend trend = Trend.STEADY;
+        private int samples;
+        private long grown;
+        private long shrunk;
+
+        private Control(DeliveryQueue destination) {
+            this.destination = destination;
+        }
+
+        private void streak(Trend trend) {
+            samples = this.trend == trend ? samples + 1 : 1;
+            this.trend = trend;
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package dslab.transfer;
+
+import dslab.Exceptions.DMTProtocolException;
+import dslab.dtos.Email;
+import dslab.protocols.DmtpCompression;
+import dslab.protocols.DslabMessageTransferProtocolClient;
+import dslab.util.SocketIOTool;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Objects;
+import java.util.logging.Logger;
+
+/**
+ * A DMTP client session to one mailbox server that can carry several message transactions.
+ */
+public class DmtpConnection implements DslabMessageTransferProtocolClient {
+
+    private static final Logger audit = Logger.getLogger("requests");
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final Charset CHARSET = Charset.defaultCharset();
+    /**
+     * Shorter data is sent as it is, deflate and base64 would hardly make it smaller.
+     */
+    private static final int MIN_COMPRESSED_LENGTH = 256;
+
+    private final String endpoint;
+    private final Socket socket;
+    private final SocketIOTool ioTool;
+    private final boolean pipelining;
+    private final DmtpCompression.Statistics compressionStatistics;
+    private DmtpCompression compression;
+    private long lastUsed = System.currentTimeMillis();
+
+    private DmtpConnection(String endpoint, Socket socket, boolean pipelining,
+                           DmtpCompression.Statistics compressionStatistics) throws IOException {
+        this.endpoint = endpoint;
+        this.socket = socket;
+        this.pipelining = pipelining;
+        this.compressionStatistics = compressionStatistics;
+        this.ioTool = new SocketIOTool(
+                new OutputStreamWriter(socket.getOutputStream()),
+                new InputStreamReader(socket.getInputStream())
+        );
+    }
+
+    /**
+     * Connects to the given mailbox server and waits for its greeting.
+     *
+     * @param endpoint   the socket address as listed in domains.properties, i.e. {@code host:port}
+     * @param address    the resolved socket address of the endpoint
+     * @param pipelining whether {@link #transfer} writes the message fields without waiting for each reply
+     * @param statistics where the savings are recorded if the data is to be compressed, or null to send it as it is
+     * @param timeouts   the connect and read timeouts
+     * @return the connected session
+     * @throws IOException if connecting fails, a timeout expires or the server does not greet with DMTP
+     */
+    public static DmtpConnection open(String endpoint, InetSocketAddress address, boolean pipelining,
+                                      DmtpCompression.Statistics statistics, Timeouts timeouts) throws IOException {
+        return open(endpoint, address, pipelining, statistics, statistics != null, timeouts);
+    }
+
+    private static DmtpConnection open(String endpoint, InetSocketAddress address, boolean pipelining,
+                                       DmtpCompression.Statistics statistics, boolean negotiate, Timeouts timeouts)
+            throws IOException {
+        Socket socket = new Socket();
+        try {
+            // a mailbox server that hangs must not hold a consumer for longer than the timeouts
+            socket.connect(address, timeouts.connectMillis);
+            socket.setSoTimeout(timeouts.readMillis);
+            DmtpConnection connection = new DmtpConnection(endpoint, socket, pipelining, statistics);
+            if (!Objects.equals(connection.reply("connecting"), OK + " DMTP")) {
+                throw new DMTProtocolException("No response after connecting");
+            }
+            if (negotiate && !connection.negotiateCompression()) {
+                // a server without the extension ends the session on the unknown command
+                socket.close();
+                return open(endpoint, address, pipelining, statistics, false, timeouts);
+            }
+            return connection;
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    public void touch() {
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns whether compression was asked for, even if the server does not support it.
+     */
+    public boolean isCompressionRequested() {
+        return compressionStatistics != null;
+    }
+
+    public boolean isCompressing() {
+        return compression != null;
+    }
+
+    public boolean isOpen() {
+        return !socket.isClosed() && !socket.isInputShutdown() && !socket.isOutputShutdown();
+    }
+
+    /**
+     * Sends the given email within the transaction started by {@code begin}.
+     * <p>
+     * With pipelining, to, from, subject and data are written at once and their replies are matched in order
+     * afterwards, so the message costs two round trips instead of five. {@code send} is only issued once all of
+     * them were accepted, a rejected field therefore never ends up as a stored message.
+     * <p>
+     * Data with several lines, and data kept in a file, is sent as a data block line by line, so it is never read
+     * into memory as a whole.
+     *
+     * @param email              the email to send
+     * @param recipients         the recipients to send it to, separated by commas, usually those of the email this
+     *                           mailbox server hosts
+     * @param numberOfRecipients the number of these recipients
+     * @throws IOException          on I/O errors, including the server closing the connection
+     * @throws DMTProtocolException if the server rejects one of the commands
+     */
+    public void transfer(Email email, String recipients, int numberOfRecipients) throws IOException {
+        if (!pipelining) {
+            to(recipients, numberOfRecipients);
+            from(email.getSender());
+            subject(email.getSubject());
+            String data = appendData(email);
+            ioTool.flush();
+            if (!reply(data).equals(OK)) {
+                throw new DMTProtocolException("Error sending " + data);
+            }
+            send();
+            return;
+        }
+
+        String[] commands = {
+                TO + recipients,
+                FROM + email.getSender(),
+                SUBJECT + email.getSubject(),
+                null
+        };
+        for (int i = 0; i < commands.length - 1; i++) {
+            ioTool.append(commands[i]);
+        }
+        commands[commands.length - 1] = appendData(email);
+        ioTool.flush();
+
+        // read every reply, even after an error, so the session does not get out of step
+        String failed = null;
+        for (String command : commands) {
+            String response = reply(command);
+            boolean accepted = command.startsWith(TO) ? response.startsWith(OK) : response.equals(OK);
+            if (!accepted && failed == null) {
+                failed = command;
+            }
+        }
+        if (failed != null) {
+            throw new DMTProtocolException("Error sending " + failed);
+        }
+        send();
+    }
+
+    @Override
+    public void begin() throws IOException {
+        sendLine(BEGIN);
+    }
+
+    @Override
+    public void to(String addresses, int numberOfRecipients) throws IOException {
+        ioTool.write(TO + addresses);
+        if (!reply(TO + addresses).startsWith(OK)) {
+            throw new DMTProtocolException("Error sending " + TO + addresses);
+        }
+    }
+
+    @Override
+    public void from(String sender) throws IOException {
+        sendLine(FROM + sender);
+    }
+
+    @Override
+    public void subject(String subject) throws IOException {
+        sendLine(SUBJECT + subject);
+    }
+
+    @Override
+    public void data(String data) throws IOException {
+        sendLine(DATA + data);
+    }
+
+    @Override
+    public void send() throws IOException {
+        sendLine(SEND);
+    }
+
+    @Override
+    public void quit() {
+        ioTool.write(QUIT);
+    }
+
+    /**
+     * Ends the session politely and closes the socket.
+     */
+    public void close() {
+        try {
+            if (isOpen()) {
+                quit();
+            }
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        } finally {
+            if (compression != null) {
+                compression.end();
+                compression = null;
+            }
+        }
+    }
+
+    private boolean negotiateCompression() throws IOException {
+        ioTool.write(COMPRESS + DmtpCompression.DEFLATE);
+        String response = reply(COMPRESS + DmtpCompression.DEFLATE);
+        if (!response.equals(OK + " " + DmtpCompression.DEFLATE)) {
+            audit.info(endpoint + " does not support compression: " + response);
+            return false;
+        }
+        compression = new DmtpCompression();
+        return true;
+    }
+
+    /**
+     * Buffers the data of an email, as a single command if it is one line or as a data block otherwise.
+     *
+     * @return the command, for matching its reply
+     */
+    private String appendData(Email email) throws IOException {
+        if (compression != null && (email.hasBody() || email.getData().length() >= MIN_COMPRESSED_LENGTH)) {
+            return appendCompressedData(email);
+        }
+        if (!email.hasBody() && email.getData().indexOf('\n') < 0) {
+            ioTool.append(DATA + email.getData());
+            return DATA + email.getData();
+        }
+        ioTool.append(DATA_BLOCK);
+        if (email.hasBody()) {
+            try (BufferedReader reader = email.getBody().open()) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    appendDataLine(line);
+                }
+            }
+        } else {
+            for (String line : email.getData().split("\n", -1)) {
+                appendDataLine(line);
+            }
+        }
+        ioTool.append(DATA_END);
+        return DATA_BLOCK;
+    }
+
+    /**
+     * Buffers the data of an email deflated, as a single command if it is short or as a block of base64 lines
+     * otherwise. Data kept in a file is streamed through the deflater.
+     *
+     * @return the command, for matching its reply
+     */
+    private String appendCompressedData(Email email) throws IOException {
+        long cpu = THREADS.getCurrentThreadCpuTime();
+        if (!email.hasBody() && email.getData().length() < Base64Lines.LINE_BYTES) {
+            byte[] data = email.getData().getBytes(CHARSET);
+            String encoded = Base64.getEncoder().encodeToString(compression.compress(data));
+            ioTool.append(ZDATA + encoded);
+            compressionStatistics.record(data.length, encoded.length(), THREADS.getCurrentThreadCpuTime() - cpu);
+            return ZDATA + "(" + encoded.length() + " bytes)";
+        }
+        Base64Lines lines = new Base64Lines();
+        long raw;
+        ioTool.append(ZDATA_BLOCK);
+        try (OutputStream out = compression.compressing(lines)) {
+            if (email.hasBody()) {
+                raw = Files.copy(email.getBody().getFile(), out);
+            } else {
+                byte[] data = email.getData().getBytes(CHARSET);
+                out.write(data);
+                raw = data.length;
+            }
+        }
+        ioTool.append(DATA_END);
+        compressionStatistics.record(raw, lines.written, THREADS.getCurrentThreadCpuTime() - cpu);
+        return ZDATA_BLOCK;
+    }
+
+    private void appendDataLine(String line) {
+        // a line of data must not be mistaken for the end of the block
+        ioTool.append(line.startsWith(DATA_END) ? DATA_END + line : line);
+    }
+
+    private void sendLine(String line) throws IOException {
+        ioTool.write(line);
+        if (!reply(line).equals(OK)) {
+            throw new DMTProtocolException("Error sending " + line);
+        }
+    }
+
+    /**
+     * Reads the reply to a command. A closed connection is an I/O error rather than a rejection, so the email can
+     * be tried again later.
+     */
+    private String reply(String command) throws IOException {
+        String response = ioTool.read();
+        if (response == null) {
+            throw new EOFException("Connection closed while sending " + command);
+        }
+        return response;
+    }
+
+    /**
+     * The connect timeout and the timeout for every reply of a mailbox server, in milliseconds, 0 meaning none.
+     */
+    public static final class Timeouts {
+        private final int connectMillis;
+        private final int readMillis;
+
+        public Timeouts(int connectMillis, int readMillis) {
+            this.connectMillis = connectMillis;
+            this.readMillis = readMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "connect=" + connectMillis + "ms read=" + readMillis + "ms";
+        }
+    }
+
+    /**
+     * Buffers the bytes written to it as base64 lines of the data block.
+     */
+    private final class Base64Lines extends OutputStream {
+        private static final int LINE_BYTES = 3 * 1024;
+
+        private final byte[] line = new byte[LINE_BYTES];
+        private int length;
+        private long written;
+
+        @Override
+        public void write(int b) {
+            line[length++] = (byte) b;
+            if (length == LINE_BYTES) {
+                appendLine();
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int count) {
+            while (count > 0) {
+                int n = Math.min(count, LINE_BYTES - length);
+                System.arraycopy(bytes, offset, line, length, n);
+                length += n;
+                offset += n;
+                count -= n;
+                if (length == LINE_BYTES) {
+                    appendLine();
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            if (length > 0) {
+                appendLine();
+            }
+        }
+
+        private void appendLine() {
+            // a whole number of 3 byte groups per line, so only the last line is padded
+            String encoded = Base64.getEncoder().encodeToString(length == LINE_BYTES ? line
+                    : Arrays.copyOf(line, length));
+            ioTool.append(encoded);
+            written += encoded.length();
+            length = 0;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package dslab.transfer;
+
+import dslab.Exceptions.CircuitOpenException;
+import dslab.protocols.DmtpCompression;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps DMTP sessions to mailbox servers open between deliveries. A borrowed connection has already answered
+ * {@code begin} with {@code ok}, so the caller can continue with the rest of the transaction right away. Reused
+ * connections are probed with exactly that {@code begin}, and replaced if the probe fails.
+ * <p>
+ * Every endpoint has a {@link CircuitBreaker}; while it is open, borrowing fails fast with a
+ * {@link CircuitOpenException}. The consumers report the outcome of their deliveries to it.
+ * <p>
+ * An endpoint that turns out not to support compression is remembered, and later connections to it do not
+ * negotiate again until {@link #resetCompression()}.
+ */
+public class DmtpConnectionPool {
+
+    private static final Logger audit = Logger.getLogger("requests");
+    private static final Logger errors = Logger.getLogger("errors");
+
+    private final int maxPerEndpoint;
+    private final long idleTimeoutMillis;
+    private final boolean pipelining;
+    private final DmtpConnection.Timeouts timeouts;
+    private final Function<String, CircuitBreaker> breakers;
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final Map<String, DmtpCompression.Statistics> compression = new ConcurrentHashMap<>();
+    private final Set<String> uncompressed = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "dmtp-pool-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param maxPerEndpoint    the most connections to one mailbox server in use at once
+     * @param idleTimeoutMillis how long an unused connection stays open
+     * @param pipelining        whether the message fields are written without waiting for each reply
+     * @param timeouts          the connect and read timeouts of every connection
+     * @param breakers          creates the circuit breaker of a mailbox server
+     */
+    public DmtpConnectionPool(int maxPerEndpoint, long idleTimeoutMillis, boolean pipelining,
+                              DmtpConnection.Timeouts timeouts, Function<String, CircuitBreaker> breakers) {
+        this.maxPerEndpoint = maxPerEndpoint;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.pipelining = pipelining;
+        this.timeouts = timeouts;
+        this.breakers = breakers;
+        long period = Math.max(idleTimeoutMillis / 2, 100);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns a connection to the given endpoint on which a transaction has been started. Blocks while the endpoint
+     * already has the maximum number of connections in use.
+     *
+     * @param endpoint the mailbox server as {@code host:port}
+     * @param address  the resolved socket address of the mailbox server
+     * @param compress  whether the connection should negotiate compression, idle connections that do not match
+     *                  are replaced; ignored for endpoints known not to support it
+     * @return a connection that must be handed back with {@link #release} or {@link #invalidate}
+     * @throws CircuitOpenException if the circuit breaker of the endpoint is open
+     * @throws IOException          if no connection could be established
+     * @throws InterruptedException if interrupted while waiting for a free slot
+     */
+    public DmtpConnection borrow(String endpoint, InetSocketAddress address, boolean compress)
+            throws IOException, InterruptedException {
+        Endpoint pool = endpoint(endpoint);
+        if (!pool.breaker.allow()) {
+            throw new CircuitOpenException("circuit breaker for " + endpoint + " is open");
+        }
+        pool.permits.acquire();
+        try {
+            boolean negotiate = compress && !uncompressed.contains(endpoint);
+            DmtpConnection connection;
+            while ((connection = pool.pollIdle()) != null) {
+                if (connection.isCompressing() != negotiate) {
+                    connection.close();
+                    continue;
+                }
+                if (isHealthy(connection)) {
+                    pool.hits.incrementAndGet();
+                    return connection;
+                }
+                pool.failedChecks.incrementAndGet();
+                connection.close();
+            }
+            pool.misses.incrementAndGet();
+            connection = DmtpConnection.open(endpoint, address, pipelining,
+                    negotiate ? compression.computeIfAbsent(endpoint, e -> new DmtpCompression.Statistics()) : null,
+                    timeouts);
+            if (negotiate && !connection.isCompressing() && uncompressed.add(endpoint)) {
+                audit.info("not negotiating compression with " + endpoint + " any more");
+            }
+            connection.begin();
+            return connection;
+        } catch (IOException | RuntimeException e) {
+            pool.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Reports a delivery the mailbox server answered, even with a rejection, to its circuit breaker.
+     *
+     * @param endpoint the mailbox server
+     * @param nanos    how long the delivery took
+     */
+    public void recordSuccess(String endpoint, long nanos) {
+        endpoint(endpoint).breaker.recordSuccess(nanos);
+    }
+
+    /**
+     * Reports a delivery that could not reach its mailbox server or timed out to its circuit breaker.
+     *
+     * @param endpoint the mailbox server
+     */
+    public void recordFailure(String endpoint) {
+        endpoint(endpoint).breaker.recordFailure();
+    }
+
+    /**
+     * Returns whether the circuit breaker of an endpoint lets deliveries through, true if it was never contacted.
+     *
+     * @param endpoint the mailbox server
+     */
+    public boolean isAvailable(String endpoint) {
+        Endpoint pool = endpoints.get(endpoint);
+        return pool == null || pool.breaker.isAvailable();
+    }
+
+    /**
+     * Returns the circuit breaker state of every endpoint that was contacted.
+     *
+     * @return the states by endpoint
+     */
+    public Map<String, String> breakerStatistics() {
+        Map<String, String> statistics = new TreeMap<>();
+        endpoints.forEach((endpoint, pool) -> statistics.put(endpoint, pool.breaker.statistics()));
+        return statistics;
+    }
+
+    /**
+     * Hands a connection back after a successful {@code send}, so it can carry the next transaction.
+     *
+     * @param connection the borrowed connection
+     */
+    public void release(DmtpConnection connection) {
+        Endpoint pool = endpoints.get(connection.getEndpoint());
+        connection.touch();
+        pool.offerIdle(connection);
+        pool.permits.release();
+    }
+
+    /**
+     * Closes a connection that must not be reused, e.g. after an I/O or protocol error.
+     *
+     * @param connection the borrowed connection
+     */
+    public void invalidate(DmtpConnection connection) {
+        connection.close();
+        endpoints.get(connection.getEndpoint()).permits.release();
+    }
+
+    /**
+     * Returns one line of pool statistics per endpoint.
+     *
+     * @return the statistics by endpoint
+     */
+    public Map<String, String> statistics() {
+        Map<String, String> statistics = new TreeMap<>();
+        endpoints.forEach((endpoint, pool) -> statistics.put(endpoint, String.format(
+                "hits=%d misses=%d failed-checks=%d evictions=%d idle=%d in-use=%d",
+                pool.hits.get(), pool.misses.get(), pool.failedChecks.get(), pool.evictions.get(),
+                pool.idleCount(), maxPerEndpoint - pool.permits.availablePermits())));
+        return statistics;
+    }
+
+    /**
+     * Returns the compression statistics of every endpoint that compressed connections were opened to.
+     *
+     * @return the statistics by endpoint
+     */
+    public Map<String, String> compressionStatistics() {
+        Map<String, String> statistics = new TreeMap<>();
+        compression.forEach((endpoint, stats) -> statistics.put(endpoint, stats.toString()));
+        uncompressed.forEach(endpoint -> statistics.merge(endpoint, "unsupported", (stats, s) -> stats + " " + s));
+        return statistics;
+    }
+
+    /**
+     * Lets connections negotiate compression again with the endpoints that did not support it, e.g. after the
+     * routing table was reloaded.
+     */
+    public void resetCompression() {
+        uncompressed.clear();
+    }
+
+    /**
+     * Closes all idle connections and stops the eviction task.
+     */
+    public void close() {
+        evictor.shutdownNow();
+        endpoints.values().forEach(pool -> {
+            DmtpConnection connection;
+            while ((connection = pool.pollIdle()) != null) {
+                connection.close();
+            }
+        });
+    }
+
+    private Endpoint endpoint(String endpoint) {
+        return endpoints.computeIfAbsent(endpoint, e -> new Endpoint(maxPerEndpoint, breakers.apply(e)));
+    }
+
+    private boolean isHealthy(DmtpConnection connection) {
+        if (!connection.isOpen()) {
+            return false;
+        }
+        try {
+            connection.begin();
+            return true;
+        } catch (IOException | RuntimeException e) {
+            audit.info("discarding stale connection to " + connection.getEndpoint() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void evictIdle() {
+        long deadline = System.currentTimeMillis() - idleTimeoutMillis;
+        try {
+            endpoints.forEach((endpoint, pool) -> {
+                for (DmtpConnection connection : pool.pollIdleBefore(deadline)) {
+                    pool.evictions.incrementAndGet();
+                    connection.close();
+                }
+            });
+        } catch (RuntimeException e) {
+            errors.log(Level.WARNING, "Error while evicting idle connections: " + e.getMessage(), e);
+        }
+    }
+
+    private static class Endpoint {
+        private final Semaphore permits;
+        private final CircuitBreaker breaker;
+        private final Deque<DmtpConnection> idle = new ArrayDeque<>();
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong failedChecks = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+
+        Endpoint(int maxConnections, CircuitBreaker breaker) {
+            this.permits = new Semaphore(maxConnections, true);
+            this.breaker = breaker;
+        }
+
+        synchronized DmtpConnection pollIdle() {
+            // most recently used first, so surplus connections age out
+            return idle.pollFirst();
+        }
+
+        synchronized void offerIdle(DmtpConnection connection) {
+            idle.addFirst(connection);
+        }
+
+        synchronized int idleCount() {
+            return idle.size();
+        }
+
+        synchronized Deque<DmtpConnection> pollIdleBefore(long deadline) {
+            Deque<DmtpConnection> expired = new ArrayDeque<>();
+            while (!idle.isEmpty() && idle.peekLast().getLastUsed() < deadline) {
+                expired.add(idle.pollLast());
+            }
+            return expired;
+        }
+    }
+}
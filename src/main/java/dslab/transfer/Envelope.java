@@ -0,0 +1,163 @@
+package dslab.transfer;
+
+import dslab.dtos.Email;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An accepted email together with the bookkeeping shared by its deliveries to the different mailbox servers. The
+ * deliveries run concurrently on the consumers of their mailbox servers; each one records here how long it took
+ * and why it failed, if it did, so the outcome can be reported once when the last one is finished.
+ */
+public class Envelope {
+
+    private final Email email;
+    private final long spoolId;
+    private final AtomicInteger pendingDeliveries = new AtomicInteger();
+    private final long acceptedNanos = System.nanoTime();
+    private final Map<String, Timing> timings = new ConcurrentHashMap<>();
+    private final Map<String, String> failures = new ConcurrentHashMap<>();
+    private volatile DeliveryLanes.Lane lane = DeliveryLanes.Lane.INTERACTIVE;
+
+    /**
+     * @param email   the accepted email
+     * @param spoolId the id of the email in the {@link MailSpool}, or -1 if it is not spooled
+     */
+    public Envelope(Email email, long spoolId) {
+        this.email = email;
+        this.spoolId = spoolId;
+    }
+
+    public Email getEmail() {
+        return email;
+    }
+
+    public long getSpoolId() {
+        return spoolId;
+    }
+
+    public boolean isSpooled() {
+        return spoolId >= 0;
+    }
+
+    /**
+     * Returns the size of the email's data in bytes, roughly.
+     */
+    public long getSize() {
+        return sizeOf(email);
+    }
+
+    /**
+     * Returns the size of an email's data in bytes, roughly.
+     */
+    public static long sizeOf(Email email) {
+        return email.hasBody() ? email.getBody().getSize() : email.getData() != null ? email.getData().length() : 0;
+    }
+
+    /**
+     * Returns the time the email was accepted, as {@link System#nanoTime()}.
+     */
+    public long getAcceptedNanos() {
+        return acceptedNanos;
+    }
+
+    public DeliveryLanes.Lane getLane() {
+        return lane;
+    }
+
+    /**
+     * Marks the lane the deliveries of this email are queued in, before they are.
+     */
+    public void setLane(DeliveryLanes.Lane lane) {
+        this.lane = lane;
+    }
+
+    /**
+     * Sets the number of mailbox servers this email has to be delivered to.
+     */
+    public void expectDeliveries(int deliveries) {
+        pendingDeliveries.set(deliveries);
+    }
+
+    /**
+     * Records a delivery that reached its mailbox server.
+     *
+     * @param partition the recipients of the delivery
+     * @param endpoint  the mailbox server
+     */
+    public void recordDelivered(String partition, String endpoint) {
+        timings.put(partition, new Timing(endpoint, System.nanoTime() - acceptedNanos));
+    }
+
+    /**
+     * Records a delivery that was given up, or a destination that could not be resolved.
+     *
+     * @param partition   the recipients of the delivery, or the unknown domain
+     * @param destination the mailbox server or domain
+     * @param reason      why the email did not get there
+     */
+    public void recordFailed(String partition, String destination, String reason) {
+        timings.put(partition, new Timing(destination, System.nanoTime() - acceptedNanos));
+        failures.put(partition, reason);
+    }
+
+    /**
+     * Returns how long after acceptance each delivery finished. Several partitions can be served by the same
+     * mailbox server, so they are kept apart by their recipients.
+     *
+     * @return the timings by recipients or unknown domain
+     */
+    public Map<String, Timing> getTimings() {
+        return Collections.unmodifiableMap(new TreeMap<>(timings));
+    }
+
+    /**
+     * Returns why deliveries failed.
+     *
+     * @return the reasons by recipients or unknown domain, empty if all deliveries succeeded
+     */
+    public Map<String, String> getFailures() {
+        return Collections.unmodifiableMap(new TreeMap<>(failures));
+    }
+
+    /**
+     * Records that one of the deliveries is finished, successfully or not.
+     *
+     * @return true if this was the last outstanding delivery
+     */
+    public boolean completeDelivery() {
+        return pendingDeliveries.decrementAndGet() == 0;
+    }
+
+    /**
+     * When a delivery finished, and where it went.
+     */
+    public static final class Timing {
+
+        private final String destination;
+        private final long nanos;
+
+        private Timing(String destination, long nanos) {
+            this.destination = destination;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Returns the mailbox server or unknown domain.
+         */
+        public String getDestination() {
+            return destination;
+        }
+
+        /**
+         * Returns the time after acceptance, in nanoseconds.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+    }
+}
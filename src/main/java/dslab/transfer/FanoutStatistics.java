@@ -0,0 +1,96 @@
+package dslab.transfer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Records how long emails take until their deliveries to all mailbox servers are finished. For emails to several
+ * mailbox servers it compares that time with the sum of their delivery times, which is what delivering one after
+ * the other would have taken.
+ */
+public class FanoutStatistics {
+
+    private static final Logger audit = Logger.getLogger("requests");
+
+    private final LongAdder emails = new LongAdder();
+    private final LongAdder fanouts = new LongAdder();
+    private final LongAdder bounced = new LongAdder();
+    private final LongAdder completionNanos = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+    private final Map<String, Timing> destinations = new ConcurrentHashMap<>();
+
+    /**
+     * Records an email whose deliveries are all finished.
+     *
+     * @param envelope the email
+     */
+    public void record(Envelope envelope) {
+        Map<String, Envelope.Timing> timings = envelope.getTimings();
+        if (timings.isEmpty()) {
+            return;
+        }
+        emails.increment();
+        if (!envelope.getFailures().isEmpty()) {
+            bounced.increment();
+        }
+        long completion = 0;
+        long sum = 0;
+        for (Envelope.Timing timing : timings.values()) {
+            destinations.computeIfAbsent(timing.getDestination(), d -> new Timing()).add(timing.getNanos());
+            completion = Math.max(completion, timing.getNanos());
+            sum += timing.getNanos();
+        }
+        if (timings.size() > 1) {
+            fanouts.increment();
+            completionNanos.add(completion);
+            sumNanos.add(sum);
+            audit.info(envelope.getEmail() + " finished in " + format(completion) + " at " + formatAll(timings));
+        }
+    }
+
+    /**
+     * Returns a summary line followed by one line per mailbox server or unknown domain.
+     *
+     * @return the statistics by name
+     */
+    public Map<String, String> statistics() {
+        Map<String, String> statistics = new LinkedHashMap<>();
+        long count = fanouts.sum();
+        statistics.put("fanout", String.format("emails=%d multi-destination=%d bounced=%d completion=%s sum=%s",
+                emails.sum(), count, bounced.sum(), average(completionNanos.sum(), count),
+                average(sumNanos.sum(), count)));
+        new TreeMap<>(destinations).forEach((destination, timing) -> statistics.put(destination,
+                String.format("deliveries=%d average=%s", timing.count.sum(),
+                        average(timing.nanos.sum(), timing.count.sum()))));
+        return statistics;
+    }
+
+    private static String average(long nanos, long count) {
+        return count == 0 ? "-" : format(nanos / count);
+    }
+
+    private static String format(long nanos) {
+        return String.format("%.1fms", nanos / 1e6);
+    }
+
+    private static String formatAll(Map<String, Envelope.Timing> timings) {
+        Map<String, String> formatted = new TreeMap<>();
+        timings.forEach((partition, timing) -> formatted.put(partition,
+                format(timing.getNanos()) + " via " + timing.getDestination()));
+        return formatted.toString();
+    }
+
+    private static final class Timing {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        private void add(long nanos) {
+            count.increment();
+            this.nanos.add(nanos);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package dslab.transfer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Picks one of the mailbox servers of a domain for a delivery. Servers whose circuit breaker is open drop out of the
+ * choice and rejoin as soon as it lets probes through again; only if all of them are out, the choice is made among
+ * all. Among the remaining servers the policy decides.
+ */
+public class LoadBalancer {
+
+    /**
+     * How the mailbox server is picked.
+     */
+    public enum Policy {
+        /**
+         * The server with the fewest queued and in-flight deliveries, ties broken at random.
+         */
+        LEAST_OUTSTANDING,
+        /**
+         * A random server, weighted by the inverse of its recent delivery time. Servers without deliveries yet
+         * count as fast, so they get sampled.
+         */
+        LATENCY_WEIGHTED
+    }
+
+    private static final long MIN_LATENCY_NANOS = 100_000;
+
+    private final Policy policy;
+    private final Predicate<String> available;
+    private final Map<String, LongAdder> chosen = new ConcurrentHashMap<>();
+    private final LongAdder failovers = new LongAdder();
+
+    /**
+     * @param policy    how to pick among the available servers
+     * @param available whether a mailbox server, as {@code host:port}, takes deliveries at the moment
+     */
+    public LoadBalancer(Policy policy, Predicate<String> available) {
+        this.policy = policy;
+        this.available = available;
+    }
+
+    /**
+     * Picks the queue of one mailbox server.
+     *
+     * @param candidates the queues of the mailbox servers of a domain, not empty
+     * @param failed     a queue to avoid because a delivery just failed there, or null
+     * @return the chosen queue
+     */
+    public DeliveryQueue choose(List<DeliveryQueue> candidates, DeliveryQueue failed) {
+        DeliveryQueue choice = candidates.size() == 1 ? candidates.get(0) : choose(healthy(candidates, failed));
+        if (failed != null && choice != failed) {
+            failovers.increment();
+        }
+        chosen.computeIfAbsent(choice.getEndpoint(), e -> new LongAdder()).increment();
+        return choice;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Returns whether a mailbox server takes deliveries at the moment.
+     *
+     * @param endpoint the mailbox server as {@code host:port}
+     */
+    public boolean isAvailable(String endpoint) {
+        return available.test(endpoint);
+    }
+
+    /**
+     * Returns how often every mailbox server was picked, and how often a failed delivery moved to another one.
+     *
+     * @return the statistics by endpoint, and the failovers by {@code failovers}
+     */
+    public Map<String, Long> statistics() {
+        Map<String, Long> statistics = new TreeMap<>();
+        chosen.forEach((endpoint, count) -> statistics.put(endpoint, count.sum()));
+        statistics.put("failovers", failovers.sum());
+        return statistics;
+    }
+
+    private List<DeliveryQueue> healthy(List<DeliveryQueue> candidates, DeliveryQueue failed) {
+        List<DeliveryQueue> healthy = new ArrayList<>(candidates.size());
+        for (DeliveryQueue candidate : candidates) {
+            if (candidate != failed && available.test(candidate.getEndpoint())) {
+                healthy.add(candidate);
+            }
+        }
+        return healthy.isEmpty() ? candidates : healthy;
+    }
+
+    private DeliveryQueue choose(List<DeliveryQueue> candidates) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (policy == Policy.LEAST_OUTSTANDING) {
+            DeliveryQueue best = null;
+            long fewest = Long.MAX_VALUE;
+            int ties = 0;
+            for (DeliveryQueue candidate : candidates) {
+                long outstanding = candidate.getOutstanding();
+                if (outstanding < fewest) {
+                    best = candidate;
+                    fewest = outstanding;
+                    ties = 1;
+                } else if (outstanding == fewest && random.nextInt(++ties) == 0) {
+                    // reservoir sampling keeps every tied candidate equally likely
+                    best = candidate;
+                }
+            }
+            return best;
+        }
+        double[] weights = new double[candidates.size()];
+        double total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            long latency = candidates.get(i).getLatencyNanos();
+            weights[i] = 1.0 / Math.max(latency, MIN_LATENCY_NANOS);
+            total += weights[i];
+        }
+        double point = random.nextDouble(total);
+        for (int i = 0; i < weights.length - 1; i++) {
+            point -= weights[i];
+            if (point < 0) {
+                return candidates.get(i);
+            }
+        }
+        return candidates.get(weights.length - 1);
+    }
+}
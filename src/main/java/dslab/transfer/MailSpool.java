@@ -0,0 +1,491 @@
+package dslab.transfer;
+
+import dslab.dtos.Email;
+import dslab.dtos.MessageBody;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of accepted emails, kept in memory-mapped segment files.
+ * <p>
+ * Every accepted email is written as an {@code ACCEPTED} record before the client gets its {@code ok}, and a
+ * {@code DELIVERED} record is appended once all of its deliveries are finished. On startup, {@link #open()} replays
+ * the segments and returns every email without a {@code DELIVERED} record. Segments are deleted oldest first as soon
+ * as none of their emails is outstanding any more; deleting them in order keeps the {@code DELIVERED} records of later
+ * segments meaningful.
+ * <p>
+ * The fsync policy decides when an append counts as durable: {@code always} forces the segment on every append,
+ * {@code group} lets a flusher thread force once for all appends that arrived within the group commit window, and
+ * {@code none} leaves write-back to the operating system. Forcing happens outside the lock, so appends go on while
+ * the disk syncs. If the flusher cannot force, the spool fails: waiting and later appends throw.
+ * <p>
+ * Data kept in a file is journaled by its path only; the file has to live in a directory that survives a restart.
+ */
+public class MailSpool implements Closeable {
+
+    public enum FsyncPolicy {
+        ALWAYS, GROUP, NONE
+    }
+
+    private static final Logger audit = Logger.getLogger("requests");
+    private static final Logger errors = Logger.getLogger("errors");
+
+    private static final byte ACCEPTED = 1;
+    private static final byte DELIVERED = 2;
+    private static final byte DATA_INLINE = 0;
+    private static final byte DATA_FILE = 1;
+    // payload length, crc, type, id
+    private static final int HEADER = Integer.BYTES + Integer.BYTES + Byte.BYTES + Long.BYTES;
+    private static final String SUFFIX = ".spool";
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Path directory;
+    private final int segmentSize;
+    private final FsyncPolicy policy;
+    private final long groupCommitMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition written = lock.newCondition();
+    private final Condition forced = lock.newCondition();
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final Map<Long, Segment> outstanding = new HashMap<>();
+    private final Set<Segment> dirty = new LinkedHashSet<>();
+    private long nextId;
+    private long nextSegment;
+    private long appendSequence;
+    private long forcedSequence;
+    private long appends;
+    private long completions;
+    private long forces;
+    private long reclaimed;
+    private boolean closed;
+    private IOException failure;
+    private Thread flusher;
+
+    public MailSpool(Path directory, int segmentSize, FsyncPolicy policy, long groupCommitMillis) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.policy = policy;
+        this.groupCommitMillis = groupCommitMillis;
+    }
+
+    /**
+     * Opens the spool directory, replays its segments and starts a fresh segment for new appends.
+     *
+     * @return the emails that were accepted but not delivered, by spool id in the order they were accepted
+     * @throws IOException if the spool directory cannot be read or written
+     */
+    public Map<Long, Email> open() throws IOException {
+        Files.createDirectories(directory);
+        Map<Long, Email> undelivered = new LinkedHashMap<>();
+
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing.filter(path -> path.getFileName().toString().endsWith(SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        lock.lock();
+        try {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long number = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                Segment segment = new Segment(file, (int) Files.size(file));
+                segments.add(segment);
+                replay(segment, undelivered);
+                nextSegment = Math.max(nextSegment, number + 1);
+            }
+            reclaim();
+            roll(segmentSize);
+
+            if (policy == FsyncPolicy.GROUP) {
+                flusher = new Thread(this::flushLoop, "spool-flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+        } finally {
+            lock.unlock();
+        }
+        audit.info("spool " + directory + " recovered " + undelivered.size() + " undelivered emails");
+        return undelivered;
+    }
+
+    /**
+     * Appends an accepted email and waits until it is durable according to the fsync policy.
+     *
+     * @param email the accepted email
+     * @return the spool id of the email, to be passed to {@link #complete(long)}
+     * @throws IOException          if the record cannot be written
+     * @throws InterruptedException if interrupted while waiting for the group commit
+     */
+    public long append(Email email) throws IOException, InterruptedException {
+        byte[] payload = encode(email);
+        long id;
+        Segment segment;
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IOException("spool is closed");
+            }
+            if (failure != null) {
+                throw new IOException("spool failed: " + failure.getMessage(), failure);
+            }
+            id = nextId++;
+            segment = write(ACCEPTED, id, payload);
+            segment.outstanding++;
+            outstanding.put(id, segment);
+            appends++;
+            long sequence = ++appendSequence;
+
+            if (policy == FsyncPolicy.GROUP) {
+                dirty.add(segment);
+                written.signal();
+                while (forcedSequence < sequence) {
+                    if (failure != null) {
+                        throw new IOException("spool failed before the email was committed: "
+                                + failure.getMessage(), failure);
+                    }
+                    if (closed) {
+                        throw new IOException("spool was closed before the email was committed");
+                    }
+                    forced.await();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (policy == FsyncPolicy.ALWAYS) {
+            try {
+                segment.buffer.force();
+            } catch (UncheckedIOException e) {
+                // the client is told the email was not stored, so it must not come back after a restart
+                complete(id);
+                throw new IOException("could not force " + segment.path + ": " + e.getMessage(), e.getCause());
+            }
+            lock.lock();
+            try {
+                forces++;
+            } finally {
+                lock.unlock();
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Marks an email as delivered. The record is not forced: losing it in a crash only means that the email is
+     * delivered once more after the restart.
+     *
+     * @param id the spool id returned by {@link #append(Email)}
+     * @throws IOException if the record cannot be written
+     */
+    public void complete(long id) throws IOException {
+        lock.lock();
+        try {
+            Segment segment = outstanding.remove(id);
+            if (segment == null || closed) {
+                return;
+            }
+            write(DELIVERED, id, EMPTY);
+            segment.outstanding--;
+            completions++;
+            reclaim();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns one line of spool statistics.
+     *
+     * @return the statistics
+     */
+    public String statistics() {
+        lock.lock();
+        try {
+            return String.format("fsync=%s segments=%d outstanding=%d appended=%d delivered=%d forces=%d reclaimed=%d",
+                    policy.name().toLowerCase(), segments.size(), outstanding.size(), appends, completions, forces,
+                    reclaimed);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces all segments and releases them. Waiting appends fail.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            written.signalAll();
+            forced.signalAll();
+            for (Segment segment : segments) {
+                try {
+                    segment.buffer.force();
+                } catch (UncheckedIOException e) {
+                    errors.log(Level.SEVERE, "Could not force " + segment.path + ": " + e.getMessage(), e);
+                }
+                segment.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLoop() {
+        try {
+            while (true) {
+                lock.lock();
+                try {
+                    while (!closed && failure == null && appendSequence == forcedSequence) {
+                        written.await();
+                    }
+                    if (closed || failure != null) {
+                        return;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                // let concurrent appends join this commit
+                if (groupCommitMillis > 0) {
+                    Thread.sleep(groupCommitMillis);
+                }
+
+                List<Segment> toForce;
+                long sequence;
+                lock.lock();
+                try {
+                    sequence = appendSequence;
+                    toForce = new ArrayList<>(dirty);
+                    dirty.clear();
+                } finally {
+                    lock.unlock();
+                }
+
+                try {
+                    for (Segment segment : toForce) {
+                        segment.buffer.force();
+                    }
+                } catch (UncheckedIOException e) {
+                    fail(e.getCause());
+                    return;
+                }
+
+                lock.lock();
+                try {
+                    forces++;
+                    forcedSequence = sequence;
+                    forced.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            errors.log(Level.WARNING, "spool flusher interrupted", e);
+            fail(new IOException("spool flusher interrupted"));
+        }
+    }
+
+    /**
+     * Marks the spool as failed and wakes up the appends waiting for their commit, which then throw.
+     */
+    private void fail(IOException cause) {
+        errors.log(Level.SEVERE, "spool " + directory + " failed: " + cause.getMessage(), cause);
+        lock.lock();
+        try {
+            failure = cause;
+            forced.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Segment write(byte type, long id, byte[] payload) throws IOException {
+        int length = HEADER + payload.length;
+        Segment current = segments.peekLast();
+        if (current.buffer.remaining() < length) {
+            current = roll(Math.max(segmentSize, length));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(ByteBuffer.allocate(Long.BYTES).putLong(0, id));
+        crc.update(payload);
+
+        current.buffer.putInt(payload.length)
+                .putInt((int) crc.getValue())
+                .put(type)
+                .putLong(id)
+                .put(payload);
+        return current;
+    }
+
+    private Segment roll(int size) throws IOException {
+        Path file = directory.resolve(String.format("%016d%s", nextSegment++, SUFFIX));
+        Segment segment = new Segment(file, size);
+        segments.add(segment);
+        return segment;
+    }
+
+    private void replay(Segment segment, Map<Long, Email> undelivered) {
+        ByteBuffer buffer = segment.buffer;
+        while (buffer.remaining() >= HEADER) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            byte type = buffer.get();
+            long id = buffer.getLong();
+            if (length < 0 || length > buffer.remaining() || (type != ACCEPTED && type != DELIVERED)) {
+                // zero-filled tail or torn record: nothing after it was ever acknowledged
+                buffer.position(start);
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+
+            CRC32 crc = new CRC32();
+            crc.update(type);
+            crc.update(ByteBuffer.allocate(Long.BYTES).putLong(0, id));
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                errors.log(Level.WARNING, "discarding torn record " + id + " in " + segment.path);
+                buffer.position(start);
+                break;
+            }
+
+            nextId = Math.max(nextId, id + 1);
+            if (type == ACCEPTED) {
+                undelivered.put(id, decode(payload));
+                outstanding.put(id, segment);
+                segment.outstanding++;
+            } else {
+                undelivered.remove(id);
+                Segment accepted = outstanding.remove(id);
+                if (accepted != null) {
+                    accepted.outstanding--;
+                }
+            }
+        }
+    }
+
+    private void reclaim() {
+        while (segments.size() > 1 && segments.peekFirst().outstanding == 0) {
+            Segment segment = segments.pollFirst();
+            segment.close();
+            dirty.remove(segment);
+            try {
+                Files.deleteIfExists(segment.path);
+                reclaimed++;
+            } catch (IOException e) {
+                errors.log(Level.WARNING, "Could not delete spool segment " + segment.path, e);
+            }
+        }
+    }
+
+    private static byte[] encode(Email email) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(email.getRecipients().length);
+            for (String recipient : email.getRecipients()) {
+                writeString(out, recipient);
+            }
+            writeString(out, email.getSender());
+            writeString(out, email.getSubject());
+            if (email.hasBody()) {
+                // the file stays where it is until the email is delivered
+                out.writeByte(DATA_FILE);
+                writeString(out, email.getBody().getFile().toString());
+                out.writeLong(email.getBody().getSize());
+            } else {
+                out.writeByte(DATA_INLINE);
+                writeString(out, email.getData());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static Email decode(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        String[] recipients = new String[buffer.getInt()];
+        for (int i = 0; i < recipients.length; i++) {
+            recipients[i] = readString(buffer);
+        }
+        Email email = new Email(recipients, readString(buffer), readString(buffer), null);
+        if (buffer.get() == DATA_FILE) {
+            email.setBody(new MessageBody(Paths.get(readString(buffer)), buffer.getLong(), Charset.defaultCharset()));
+        } else {
+            email.setData(readString(buffer));
+        }
+        return email;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class Segment {
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int outstanding;
+
+        Segment(Path path, int size) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package dslab.transfer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reports deliveries to the monitoring server without holding up the delivery workers. Records are queued and a
+ * background thread packs them, one per line, into as few datagrams as possible. The replies of the monitoring
+ * server are only read to count rejected packets.
+ */
+public class MonitoringReporter implements Runnable {
+
+    private static final Logger audit = Logger.getLogger("requests");
+    private static final Logger errors = Logger.getLogger("errors");
+
+    /**
+     * The receive buffer size of the monitoring server.
+     */
+    private static final int MAX_DATAGRAM = 1024;
+
+    private final InetSocketAddress target;
+    private final long flushIntervalNanos;
+    private final int capacity;
+    private final Queue<byte[]> records = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong reported = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong datagrams = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final ByteBuffer packet = ByteBuffer.allocate(MAX_DATAGRAM);
+    private final ByteBuffer reply = ByteBuffer.allocate(MAX_DATAGRAM);
+    private DatagramChannel channel;
+    private volatile Thread flusher;
+    private volatile boolean running = true;
+
+    /**
+     * @param target          the monitoring server
+     * @param flushIntervalMs how long queued records may wait for more records to share their datagram
+     * @param capacity        the number of records that may be queued before new ones are dropped
+     */
+    public MonitoringReporter(InetSocketAddress target, long flushIntervalMs, int capacity) {
+        this.target = target;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+        this.capacity = capacity;
+    }
+
+    /**
+     * Opens the channel and starts the background thread.
+     *
+     * @throws IOException if the channel cannot be opened
+     */
+    public void start() throws IOException {
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        Thread thread = new Thread(this, "monitoring-reporter");
+        thread.setDaemon(true);
+        flusher = thread;
+        thread.start();
+    }
+
+    /**
+     * Queues a record of one delivery. Never blocks; if too many records are waiting, the record is dropped.
+     *
+     * @param server the local address and port the email was sent from
+     * @param sender the sender of the email
+     */
+    public void report(String server, String sender) {
+        byte[] record = (server + " " + sender).getBytes(StandardCharsets.US_ASCII);
+        if (record.length > MAX_DATAGRAM) {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (pending.incrementAndGet() > capacity) {
+            pending.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        records.offer(record);
+        reported.incrementAndGet();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            LockSupport.parkNanos(this, flushIntervalNanos);
+            flush();
+            drainReplies();
+        }
+        flush();
+    }
+
+    /**
+     * Returns one line of reporter statistics.
+     *
+     * @return the statistics
+     */
+    public String statistics() {
+        return String.format("reported=%d sent=%d datagrams=%d pending=%d dropped=%d failed=%d rejected=%d",
+                reported.get(), sent.get(), datagrams.get(), pending.get(), dropped.get(), failed.get(),
+                rejected.get());
+    }
+
+    /**
+     * Sends the queued records and closes the channel.
+     */
+    public void close() {
+        running = false;
+        Thread thread = flusher;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                errors.log(Level.WARNING, "Could not close monitoring channel: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private void flush() {
+        byte[] record;
+        int records = 0;
+        packet.clear();
+        while ((record = this.records.poll()) != null) {
+            pending.decrementAndGet();
+            int needed = record.length + (records > 0 ? 1 : 0);
+            if (packet.remaining() < needed) {
+                send(records);
+                records = 0;
+            }
+            if (records > 0) {
+                packet.put((byte) '\n');
+            }
+            packet.put(record);
+            records++;
+        }
+        if (records > 0) {
+            send(records);
+        }
+    }
+
+    private void send(int records) {
+        packet.flip();
+        try {
+            if (channel.send(packet, target) > 0) {
+                datagrams.incrementAndGet();
+                sent.addAndGet(records);
+            } else {
+                // no room in the socket buffer
+                dropped.addAndGet(records);
+            }
+        } catch (IOException e) {
+            failed.addAndGet(records);
+            errors.log(Level.WARNING, "Could not send monitoring records: " + e.getMessage());
+        }
+        packet.clear();
+    }
+
+    private void drainReplies() {
+        try {
+            reply.clear();
+            while (channel.receive(reply) != null) {
+                reply.flip();
+                String response = StandardCharsets.US_ASCII.decode(reply).toString();
+                if (!response.startsWith("success")) {
+                    rejected.incrementAndGet();
+                    audit.info("Monitoring server rejected records: " + response);
+                }
+                reply.clear();
+            }
+        } catch (IOException e) {
+            errors.log(Level.WARNING, "Could not read monitoring replies: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package dslab.transfer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits how fast emails are accepted, with a token bucket per sender address, per sender domain and per client IP.
+ * Every email takes a token from each of its three buckets; if one of them is empty, the email is turned away right
+ * away. The buckets are spread over shards with a lock each, so checks for different keys rarely contend and never
+ * take a global lock. Every shard keeps its buckets in least recently used order: buckets unused for longer than the
+ * idle expiry are dropped, and so is the least recently used one once a shard is full, so the state stays bounded
+ * however many senders there are. A dropped bucket comes back full, which an idle bucket would be anyway.
+ * <p>
+ * The limits can be changed while the server runs and apply to existing buckets right away.
+ */
+public class RateLimiter {
+
+    /**
+     * What a bucket is keyed by.
+     */
+    public enum Kind {
+        SENDER, DOMAIN, CLIENT
+    }
+
+    private final Shard[] shards;
+    private final int maxKeysPerShard;
+    private final long idleNanos;
+    private final AtomicReferenceArray<Limit> limits = new AtomicReferenceArray<>(Kind.values().length);
+    private final LongAdder[] rejected = new LongAdder[Kind.values().length];
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    /**
+     * @param shards           the number of shards, rounded up to a power of two
+     * @param maxKeys          the buckets kept at most over all shards
+     * @param idleExpiryMillis how long an unused bucket is kept
+     */
+    public RateLimiter(int shards, int maxKeys, long idleExpiryMillis) {
+        int count = 1;
+        while (count < shards) {
+            count <<= 1;
+        }
+        this.shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            this.shards[i] = new Shard();
+        }
+        this.maxKeysPerShard = Math.max(1, maxKeys / count);
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleExpiryMillis);
+        for (Kind kind : Kind.values()) {
+            limits.set(kind.ordinal(), Limit.NONE);
+            rejected[kind.ordinal()] = new LongAdder();
+        }
+    }
+
+    /**
+     * Sets the limit of one kind of key.
+     *
+     * @param kind  the kind of key
+     * @param rate  the tokens added per second, 0 for no limit
+     * @param burst the tokens a bucket holds at most, i.e. how many emails may come at once
+     */
+    public void setLimit(Kind kind, double rate, double burst) {
+        if (rate < 0 || (rate > 0 && burst < 1)) {
+            throw new IllegalArgumentException("rate must not be negative and burst must be at least 1");
+        }
+        limits.set(kind.ordinal(), rate == 0 ? Limit.NONE : new Limit(rate, burst));
+    }
+
+    /**
+     * Takes a token for an email from the buckets of its sender, its sender's domain and its client.
+     *
+     * @param sender the sender address
+     * @param client the client IP, or null if unknown
+     * @return null if the email may be accepted, otherwise the kind of limit it exceeds
+     */
+    public Kind acquire(String sender, String client) {
+        String domain = sender.substring(sender.indexOf('@') + 1);
+        Kind exceeded = null;
+        // a token taken from one bucket is put back if a later one is empty, so rejected emails cost nothing
+        if (client != null && !take(Kind.CLIENT, client)) {
+            exceeded = Kind.CLIENT;
+        } else if (!take(Kind.DOMAIN, domain)) {
+            exceeded = Kind.DOMAIN;
+            refund(Kind.CLIENT, client);
+        } else if (!take(Kind.SENDER, sender)) {
+            exceeded = Kind.SENDER;
+            refund(Kind.CLIENT, client);
+            refund(Kind.DOMAIN, domain);
+        }
+        if (exceeded == null) {
+            allowed.increment();
+        } else {
+            rejected[exceeded.ordinal()].increment();
+        }
+        return exceeded;
+    }
+
+    /**
+     * Gives back the tokens an accepted email took, because it was turned away for another reason after all.
+     *
+     * @param sender the sender address
+     * @param client the client IP, or null if unknown
+     */
+    public void release(String sender, String client) {
+        refund(Kind.CLIENT, client);
+        refund(Kind.DOMAIN, sender.substring(sender.indexOf('@') + 1));
+        refund(Kind.SENDER, sender);
+        allowed.decrement();
+    }
+
+    /**
+     * Returns the limits, the buckets kept and the counters.
+     *
+     * @return the statistics by name
+     */
+    public Map<String, String> statistics() {
+        Map<String, String> statistics = new TreeMap<>();
+        int keys = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                keys += shard.buckets.size();
+            }
+        }
+        for (Kind kind : Kind.values()) {
+            statistics.put(kind.name().toLowerCase(), limit(kind) + " rejected=" + rejected[kind.ordinal()].sum());
+        }
+        statistics.put("buckets", String.format("keys=%d/%d shards=%d expired=%d allowed=%d", keys,
+                maxKeysPerShard * shards.length, shards.length, expired.sum(), allowed.sum()));
+        return statistics;
+    }
+
+    private Limit limit(Kind kind) {
+        return limits.get(kind.ordinal());
+    }
+
+    private boolean take(Kind kind, String key) {
+        Limit limit = limit(kind);
+        if (limit == Limit.NONE) {
+            return true;
+        }
+        Shard shard = shardOf(kind, key);
+        long now = System.nanoTime();
+        String name = kind.ordinal() + key;
+        synchronized (shard) {
+            shard.expire(now);
+            Bucket bucket = shard.buckets.get(name);
+            if (bucket == null) {
+                bucket = new Bucket(limit.burst, now);
+                shard.buckets.put(name, bucket);
+            }
+            bucket.refill(limit, now);
+            if (bucket.tokens < 1) {
+                return false;
+            }
+            bucket.tokens--;
+            return true;
+        }
+    }
+
+    private void refund(Kind kind, String key) {
+        Limit limit = limit(kind);
+        if (key == null || limit == Limit.NONE) {
+            return;
+        }
+        Shard shard = shardOf(kind, key);
+        synchronized (shard) {
+            Bucket bucket = shard.buckets.get(kind.ordinal() + key);
+            if (bucket != null) {
+                bucket.tokens = Math.min(limit.burst, bucket.tokens + 1);
+            }
+        }
+    }
+
+    private Shard shardOf(Kind kind, String key) {
+        int hash = key.hashCode() * 31 + kind.ordinal();
+        return shards[(hash ^ (hash >>> 16)) & (shards.length - 1)];
+    }
+
+    /**
+     * Tokens per second and bucket size of one kind of key.
+     */
+    private static final class Limit {
+        private static final Limit NONE = new Limit(0, 0);
+
+        private final double rate;
+        private final double burst;
+
+        private Limit(double rate, double burst) {
+            this.rate = rate;
+            this.burst = burst;
+        }
+
+        @Override
+        public String toString() {
+            return rate == 0 ? "unlimited" : String.format("rate=%.2f/s burst=%.0f", rate, burst);
+        }
+    }
+
+    private static final class Bucket {
+        private double tokens;
+        private long refilled;
+
+        private Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.refilled = now;
+        }
+
+        private void refill(Limit limit, long now) {
+            tokens = Math.min(limit.burst, tokens + (now - refilled) / 1e9 * limit.rate);
+            refilled = now;
+        }
+    }
+
+    /**
+     * The buckets of one shard, least recently used first.
+     */
+    private final class Shard {
+        private final LinkedHashMap<String, Bucket> buckets = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+                if (size() > maxKeysPerShard) {
+                    expired.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        private void expire(long now) {
+            Iterator<Bucket> iterator = buckets.values().iterator();
+            while (iterator.hasNext()) {
+                if (now - iterator.next().refilled < idleNanos) {
+                    return;
+                }
+                iterator.remove();
+                expired.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package dslab.transfer;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Puts deliveries that failed because their mailbox server could not be reached back into their queue after an
+ * exponentially growing, jittered delay. Waiting deliveries are held by a timer, not by a delivery worker.
+ */
+public class RetryScheduler {
+
+    private static final Logger audit = Logger.getLogger("requests");
+
+    private static final long[] AGE_LIMITS = {1000, 10_000, 60_000, 600_000};
+    private static final String[] AGE_LABELS = {"<1s", "<10s", "<1m", "<10m", ">=10m"};
+
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final long maxAgeMillis;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "delivery-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Set<Delivery> waiting = ConcurrentHashMap.newKeySet();
+    private final AtomicLong scheduled = new AtomicLong();
+    private final AtomicLong requeued = new AtomicLong();
+    private final AtomicLong recovered = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    /**
+     * @param initialDelayMillis the delay before the first retry
+     * @param maxDelayMillis     the upper bound of the delay between two retries
+     * @param maxAgeMillis       how long after its first failure a delivery is given up
+     */
+    public RetryScheduler(long initialDelayMillis, long maxDelayMillis, long maxAgeMillis) {
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Records a failed attempt and schedules the next one.
+     *
+     * @param delivery the delivery that failed
+     * @return false if the delivery is too old to be tried again and has to be bounced
+     */
+    public boolean schedule(Delivery delivery) {
+        long now = System.currentTimeMillis();
+        int attempts = delivery.recordFailure(now);
+        if (now - delivery.getFirstFailure() >= maxAgeMillis) {
+            expired.incrementAndGet();
+            return false;
+        }
+        long delay = backoff(attempts);
+        audit.info("retrying " + delivery + " in " + delay + " ms, attempt " + attempts);
+        waiting.add(delivery);
+        scheduled.incrementAndGet();
+        try {
+            timer.schedule(() -> requeue(delivery), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down, the email stays in the spool if there is one
+            waiting.remove(delivery);
+        }
+        return true;
+    }
+
+    /**
+     * Records a successful delivery, counting it if it needed retries.
+     */
+    public void recordDelivered(Delivery delivery) {
+        if (delivery.getAttempts() > 0) {
+            recovered.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the retry counters and the distribution of attempts and age of the waiting deliveries.
+     *
+     * @return the statistics by name
+     */
+    public Map<String, String> statistics() {
+        long now = System.currentTimeMillis();
+        long[] ages = new long[AGE_LABELS.length];
+        Map<Integer, Integer> attempts = new TreeMap<>();
+        for (Delivery delivery : waiting) {
+            long age = now - delivery.getFirstFailure();
+            int bucket = 0;
+            while (bucket < AGE_LIMITS.length && age >= AGE_LIMITS[bucket]) {
+                bucket++;
+            }
+            ages[bucket]++;
+            attempts.merge(delivery.getAttempts(), 1, Integer::sum);
+        }
+
+        StringBuilder age = new StringBuilder();
+        for (int i = 0; i < AGE_LABELS.length; i++) {
+            age.append(i > 0 ? " " : "").append(AGE_LABELS[i]).append('=').append(ages[i]);
+        }
+        StringBuilder attempt = new StringBuilder();
+        attempts.forEach((count, deliveries) ->
+                attempt.append(attempt.length() > 0 ? " " : "").append(count).append('=').append(deliveries));
+
+        Map<String, String> statistics = new TreeMap<>();
+        statistics.put("retries", String.format("waiting=%d scheduled=%d requeued=%d recovered=%d expired=%d",
+                waiting.size(), scheduled.get(), requeued.get(), recovered.get(), expired.get()));
+        statistics.put("attempts", attempt.length() > 0 ? attempt.toString() : "none waiting");
+        statistics.put("age", age.toString());
+        return Collections.unmodifiableMap(statistics);
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    private void requeue(Delivery delivery) {
+        // never block the timer on a full queue, look again after the initial delay instead
+        if (delivery.getDestination().offer(delivery)) {
+            waiting.remove(delivery);
+            requeued.incrementAndGet();
+        } else {
+            try {
+                timer.schedule(() -> requeue(delivery), initialDelayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                waiting.remove(delivery);
+            }
+        }
+    }
+
+    /**
+     * Doubles the delay with every attempt up to the maximum and picks a random point in its upper half, so
+     * deliveries that failed together do not all come back at once.
+     */
+    long backoff(int attempts) {
+        long delay = initialDelayMillis << Math.min(attempts - 1, 30);
+        if (delay <= 0 || delay > maxDelayMillis) {
+            delay = maxDelayMillis;
+        }
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+    }
+}
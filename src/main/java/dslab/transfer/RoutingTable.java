@@ -0,0 +1,124 @@
+package dslab.transfer;
+
+import dslab.util.DomainTrie;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An immutable snapshot of domains.properties: which mailbox servers, as {@code host:port}, serve which domain, with
+ * the socket address of every server resolved once when the table is built. A domain may list several servers
+ * separated by commas; which of them gets an email is up to the {@link LoadBalancer}. Subdomains are served by the
+ * mailbox servers of their closest listed parent domain.
+ */
+public final class RoutingTable {
+
+    private static final Logger errors = Logger.getLogger("errors");
+
+    private final Map<String, List<String>> domains;
+    private final DomainTrie<List<String>> endpoints;
+    private final Map<String, InetSocketAddress> addresses;
+
+    private RoutingTable(Map<String, List<String>> domains, Map<String, InetSocketAddress> addresses) {
+        this.domains = domains;
+        this.endpoints = new DomainTrie<>(domains);
+        this.addresses = addresses;
+    }
+
+    /**
+     * Builds a table from domain to {@code host:port[,host:port...]} entries. Servers whose host cannot be resolved
+     * are left out, and so are domains without any server left.
+     *
+     * @param domains the properties of domains.properties
+     * @return the table
+     */
+    public static RoutingTable of(Properties domains) {
+        Map<String, List<String>> endpoints = new TreeMap<>();
+        Map<String, InetSocketAddress> addresses = new TreeMap<>();
+        for (String domain : domains.stringPropertyNames()) {
+            List<String> servers = new ArrayList<>();
+            for (String server : domains.getProperty(domain).split(",")) {
+                String endpoint = server.trim();
+                try {
+                    InetSocketAddress address = addresses.get(endpoint);
+                    if (address == null) {
+                        String[] socketAddress = endpoint.split(":");
+                        address = new InetSocketAddress(InetAddress.getByName(socketAddress[0]),
+                                Integer.parseInt(socketAddress[1]));
+                        addresses.put(endpoint, address);
+                    }
+                    if (!servers.contains(endpoint)) {
+                        servers.add(endpoint);
+                    }
+                } catch (UnknownHostException | RuntimeException e) {
+                    errors.log(Level.WARNING, "Ignoring route " + domain + "=" + endpoint + ": " + e.getMessage());
+                }
+            }
+            if (!servers.isEmpty()) {
+                endpoints.put(domain, Collections.unmodifiableList(servers));
+            }
+        }
+        return new RoutingTable(Collections.unmodifiableMap(endpoints), Collections.unmodifiableMap(addresses));
+    }
+
+    /**
+     * Loads a table from a properties resource.
+     *
+     * @param resource the location of domains.properties
+     * @return the table
+     * @throws IOException if the resource cannot be read
+     */
+    public static RoutingTable load(URL resource) throws IOException {
+        Properties domains = new Properties();
+        try (InputStream in = resource.openStream()) {
+            domains.load(in);
+        }
+        return of(domains);
+    }
+
+    /**
+     * Returns the mailbox servers of a domain.
+     *
+     * @param domain the domain of a sender or recipient
+     * @return the endpoints as {@code host:port}, or null if the domain is unknown
+     */
+    public List<String> lookup(String domain) {
+        return endpoints.findSuffix(domain);
+    }
+
+    /**
+     * Returns the resolved socket address of a mailbox server.
+     *
+     * @param endpoint the endpoint as {@code host:port}
+     * @return the address, or null if the endpoint is not in this table
+     */
+    public InetSocketAddress address(String endpoint) {
+        return addresses.get(endpoint);
+    }
+
+    /**
+     * Returns the resolved socket address of every mailbox server, by endpoint.
+     */
+    public Map<String, InetSocketAddress> addresses() {
+        return addresses;
+    }
+
+    /**
+     * Returns the endpoints of every listed domain, by domain.
+     */
+    public Map<String, List<String>> domains() {
+        return domains;
+    }
+}
@@ -0,0 +1,93 @@
+package dslab.transfer;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches domains.properties and hands a freshly built {@link RoutingTable} to the router whenever the file changes.
+ */
+public class RoutingTableWatcher extends Thread {
+
+    private static final Logger audit = Logger.getLogger("requests");
+    private static final Logger errors = Logger.getLogger("errors");
+
+    /**
+     * Editors often write a file in several steps, so wait for them to finish before reading it.
+     */
+    private static final long SETTLE_MILLIS = 100;
+
+    private final Path file;
+    private final DeliveryRouter router;
+    private final WatchService watchService;
+
+    public RoutingTableWatcher(Path file, DeliveryRouter router) throws IOException {
+        super("routing-table-watcher");
+        setDaemon(true);
+        this.file = file;
+        this.router = router;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    @Override
+    public void run() {
+        audit.info("watching " + file + " for routing changes");
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    changed |= file.getFileName().equals(event.context());
+                }
+                key.reset();
+                if (changed) {
+                    Thread.sleep(SETTLE_MILLIS);
+                    // drop the events of the remaining writes, they are covered by this reload
+                    WatchKey pending = watchService.poll();
+                    if (pending != null) {
+                        pending.pollEvents();
+                        pending.reset();
+                    }
+                    reload();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            audit.info("stopped watching " + file);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Stops watching.
+     */
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            errors.log(Level.WARNING, e.getMessage(), e);
+        }
+    }
+
+    private void reload() {
+        try {
+            RoutingTable routes = RoutingTable.load(file.toUri().toURL());
+            if (routes.domains().isEmpty()) {
+                errors.warning("Ignoring " + file + " without any routes");
+                return;
+            }
+            router.reload(routes);
+        } catch (IOException | RuntimeException e) {
+            errors.log(Level.SEVERE, "Could not reload " + file + ", keeping the current routes: " + e.getMessage(), e);
+        }
+    }
+}
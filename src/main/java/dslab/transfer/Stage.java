@@ -0,0 +1,198 @@
+package dslab.transfer;
+
+import dslab.util.LatencyHistogram;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One stage of the transfer pipeline. Items handed to the stage wait in the bounded buffer of a
+ * {@link SubmissionPublisher} until its subscriber requests them, and the subscriber only requests as many as the
+ * stage has idle threads. A busy stage therefore leaves items in its buffer, and once that is full, handing it
+ * another one blocks the stage before it, so every stage only takes as much work as it can do. Each stage counts how
+ * long items wait in its buffer, how long processing them takes and how long producers were held up.
+ *
+ * @param <T> the type of the items
+ */
+public class Stage<T> implements Flow.Subscriber<Stage.Item<T>> {
+
+    private static final Logger errors = Logger.getLogger("errors");
+
+    private final String name;
+    private final int threads;
+    private final ExecutorService dispatcher;
+    private final ExecutorService workers;
+    private final SubmissionPublisher<Item<T>> publisher;
+    private final AtomicInteger busy = new AtomicInteger();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+    private final LongAdder blockedNanos = new LongAdder();
+    private final LatencyHistogram waits = new LatencyHistogram();
+    private final LatencyHistogram services = new LatencyHistogram();
+    private volatile Flow.Subscription subscription;
+    private Consumer<T> processor;
+
+    /**
+     * @param name       the name of the stage, also of its threads
+     * @param threads    how many items are processed at once
+     * @param bufferSize how many items wait at most, rounded up to a power of two
+     */
+    public Stage(String name, int threads, int bufferSize) {
+        if (threads < 1 || bufferSize < 1) {
+            throw new IllegalArgumentException("a stage needs at least one thread and one buffer slot");
+        }
+        this.name = name;
+        this.threads = threads;
+        this.dispatcher = Executors.newSingleThreadExecutor(runnable -> daemon(runnable, "stage-" + name));
+        AtomicInteger count = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads,
+                runnable -> daemon(runnable, "stage-" + name + "-" + count.incrementAndGet()));
+        this.publisher = new SubmissionPublisher<>(dispatcher, bufferSize);
+    }
+
+    /**
+     * Starts processing items.
+     *
+     * @param processor processes one item, usually handing the result to the next stage
+     */
+    public synchronized void start(Consumer<T> processor) {
+        this.processor = processor;
+        publisher.subscribe(this);
+    }
+
+    /**
+     * Hands an item to the stage, waiting while its buffer is full. Only meant for the stages handing items on to
+     * each other.
+     *
+     * @param item the item
+     */
+    public void submit(T item) {
+        long start = System.nanoTime();
+        publisher.submit(new Item<>(item, start));
+        blockedNanos.add(System.nanoTime() - start);
+        submitted.increment();
+    }
+
+    /**
+     * Hands an item to the stage if its buffer has room. Never waits.
+     *
+     * @param item the item
+     * @return false if the buffer is full
+     */
+    public boolean offer(T item) {
+        if (publisher.offer(new Item<>(item, System.nanoTime()), (subscriber, dropped) -> false) < 0) {
+            refused.increment();
+            return false;
+        }
+        submitted.increment();
+        return true;
+    }
+
+    /**
+     * Returns the threads, buffer and counters of the stage, and the 50th and 99th percentile of the time items
+     * waited in the buffer and took to process.
+     */
+    public String statistics() {
+        return String.format("threads=%d busy=%d buffered=%d/%d submitted=%d refused=%d processed=%d failed=%d "
+                        + "wait=%.1f/%.1fms service=%.1f/%.1fms blocked=%.1fms",
+                threads, busy.get(), publisher.estimateMaximumLag(), publisher.getMaxBufferCapacity(),
+                submitted.sum(), refused.sum(), processed.sum(), failed.sum(), waits.percentileNanos(50) / 1e6,
+                waits.percentileNanos(99) / 1e6, services.percentileNanos(50) / 1e6,
+                services.percentileNanos(99) / 1e6, blockedNanos.sum() / 1e6);
+    }
+
+    /**
+     * Returns the items waiting in the buffer, roughly.
+     */
+    public int getBuffered() {
+        return publisher.estimateMaximumLag();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Stops the stage; buffered items are dropped.
+     */
+    public void shutdown() {
+        publisher.close();
+        dispatcher.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(threads);
+    }
+
+    @Override
+    public void onNext(Item<T> item) {
+        Consumer<T> processor;
+        synchronized (this) {
+            processor = this.processor;
+        }
+        try {
+            workers.execute(() -> process(processor, item));
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        errors.log(Level.SEVERE, "Stage " + name + " failed: " + throwable.getMessage(), throwable);
+    }
+
+    @Override
+    public void onComplete() {
+    }
+
+    private void process(Consumer<T> processor, Item<T> item) {
+        busy.incrementAndGet();
+        long start = System.nanoTime();
+        waits.record(start - item.submittedNanos);
+        try {
+            processor.accept(item.value);
+            processed.increment();
+        } catch (RuntimeException e) {
+            failed.increment();
+            errors.log(Level.SEVERE, "Stage " + name + " could not process " + item.value + ": " + e.getMessage(), e);
+        } finally {
+            services.record(System.nanoTime() - start);
+            busy.decrementAndGet();
+            // the thread is idle again, so the stage can take the next item
+            subscription.request(1);
+        }
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * An item together with the time it was handed to the stage.
+     */
+    static final class Item<T> {
+        private final T value;
+        private final long submittedNanos;
+
+        private Item(T value, long submittedNanos) {
+            this.value = value;
+            this.submittedNanos = submittedNanos;
+        }
+    }
+}
@@ -1,220 +1,169 @@
 package dslab.transfer;
 
+import dslab.Exceptions.CircuitOpenException;
 import dslab.Exceptions.DMTProtocolException;
 import dslab.dtos.Email;
-import dslab.protocols.DslabMessageTransferProtocolClient;
-import dslab.util.Config;
-import dslab.util.SocketIOTool;
 
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.UncheckedIOException;
-import java.net.*;
-import java.util.HashSet;
-import java.util.Objects;
-import java.util.Set;
-import java.util.concurrent.BlockingQueue;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class TransferConsumerThread extends Thread implements DslabMessageTransferProtocolClient {
+/**
+ * Delivers the emails of one {@link DeliveryQueue} to its mailbox server, until the queue has more consumers than it
+ * should and this one retires.
+ */
+public class TransferConsumerThread extends Thread {
 
     private static final Logger audit = Logger.getLogger("requests");
     private static final Logger errors = Logger.getLogger("errors");
 
-    private final BlockingQueue<Email> queue;
-    private final InetAddress monitoringHost;
-    private final int monitoringPort;
-    private SocketIOTool ioTool;
-    private final Config domains = new Config("domains");
+    /**
+     * How long an idle consumer waits for an email before it checks whether it should retire.
+     */
+    private static final long IDLE_POLL_MILLIS = 500;
+
+    private final DeliveryQueue destination;
+    private final DeliveryRouter router;
+    private final DmtpConnectionPool connections;
+    private final int batchSize;
+    private final long lingerMillis;
     private InetAddress localAddress;
     private int localPort;
 
-    public TransferConsumerThread(BlockingQueue<Email> queue, InetAddress monitoringHost, int monitoringPort) {
-        this.queue = queue;
-        this.monitoringHost = monitoringHost;
-        this.monitoringPort = monitoringPort;
+    public TransferConsumerThread(DeliveryQueue destination, DeliveryRouter router, DmtpConnectionPool connections,
+                                  int batchSize, long lingerMillis) {
+        this.destination = destination;
+        this.router = router;
+        this.connections = connections;
+        this.batchSize = batchSize;
+        this.lingerMillis = lingerMillis;
     }
 
     @Override
     public void run() {
-        audit.info("starting Consumer...");
+        audit.info("starting Consumer for " + destination.getEndpoint());
+        boolean retired = false;
         try {
-            while (true) {
-                Email email = queue.take();
-                audit.info("Consumer took " + email);
-                if (Objects.equals(email.getSender(), "@@")) {
-                    return;
+            while (!(retired = destination.retireWorker())) {
+                List<Delivery> batch = nextBatch();
+                if (!batch.isEmpty()) {
+                    audit.info("Consumer took " + batch.size() + " emails");
+                    deliver(batch);
                 }
-                transfer(email);
             }
-        } catch (InterruptedException | UnknownHostException e) {
+            audit.info("retiring Consumer for " + destination.getEndpoint());
+        } catch (InterruptedException e) {
             errors.log(Level.SEVERE, "Shutting down with " + e.getMessage(), e);
         } catch (RuntimeException e) {
             errors.log(Level.SEVERE, e.getMessage(), e);
+        } finally {
+            if (!retired) {
+                destination.workerStopped();
+            }
         }
     }
 
-    private void transfer(Email email) throws UnknownHostException {
-        String senderDomain = email.getSender().split("@")[1];
-        if (!domains.containsKey(senderDomain)) {
-            audit.log(Level.SEVERE, "sender " + senderDomain + " does not exist");
-            return;
+    /**
+     * Waits a while for the next email, then keeps collecting until the batch is full or the linger time is over.
+     *
+     * @return the batch, empty if no email arrived
+     */
+    private List<Delivery> nextBatch() throws InterruptedException {
+        Delivery first = destination.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+            return Collections.emptyList();
         }
-
-        Set<String> knownDomains = new HashSet<>();
-        Set<String> unknownDomains = new HashSet<>();
-        for (String recipient : email.getRecipients())
-            collectUniqueDomains(knownDomains, unknownDomains, recipient);
-
-        if (!knownDomains.isEmpty()) {
-            for (String domain : knownDomains) {
-                try {
-                    sendEmail(email, domain);
-                } catch (DMTProtocolException e) {
-                    errors.log(Level.SEVERE, e.getMessage(), e);
-                    sendErrorEmail(email, domains.getString(senderDomain),
-                            "There was an error transferring this email");
-                }
+        List<Delivery> batch = new ArrayList<>(batchSize);
+        batch.add(first);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        while (batch.size() < batchSize) {
+            if (destination.drainTo(batch, batchSize - batch.size()) > 0) {
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            Delivery delivery = remaining > 0 ? destination.poll(remaining, TimeUnit.NANOSECONDS) : null;
+            if (delivery == null) {
+                break;
             }
-        } else {
-            audit.log(Level.SEVERE, "No given domain was found");
-            sendErrorEmail(email, domains.getString(senderDomain),
-                    "Email couldn't be sent to these unknown domains: " + knownDomains.toString());
+            batch.add(delivery);
         }
+        return batch;
     }
 
-    private void sendErrorEmail(Email email, String domain, String message) {
-        try {
-            Email errorMail = new Email(
-                    new String[]{email.getSender()},
-                    "mailer@" + InetAddress.getLocalHost().toString(),
-                    message,
-                    email.toString()
-            );
-            sendEmail(errorMail, domain);
-        } catch (Exception e) {
-            errors.log(Level.SEVERE, e.getMessage(), e);
+    /**
+     * Delivers all emails over a single DMTP session, one transaction after the other, and hands each outcome to the
+     * report stage. Emails the mailbox server rejects are reported as failed, emails that fail because the server
+     * cannot be reached are retried later.
+     */
+    private void deliver(List<Delivery> deliveries) throws InterruptedException {
+        DmtpConnection connection = null;
+        for (Delivery delivery : deliveries) {
+            try {
+                connection = sendEmail(connection, delivery);
+                router.delivered(delivery, localAddress.getHostAddress() + ":" + localPort);
+            } catch (IOException e) {
+                errors.log(Level.WARNING, "Could not transfer to " + destination.getEndpoint() + ": " + e.getMessage());
+                connection = null;
+                router.retry(delivery);
+            } catch (DMTProtocolException e) {
+                errors.log(Level.SEVERE, e.getMessage(), e);
+                connection = null;
+                router.failed(delivery, "rejected by the mailbox server");
+            }
+        }
+        if (connection != null) {
+            connections.release(connection);
         }
     }
 
-    private void collectUniqueDomains(Set<String> uniqueDomains, Set<String> unknownDomains, String recipient) {
-        String recipientDomain = recipient.split("@")[1];
-        if (domains.containsKey(recipientDomain)) {
-            uniqueDomains.add(domains.getString(recipientDomain));
-        } else unknownDomains.add(recipientDomain);
-    }
-
-    private void sendEmail(Email email, String domain) {
-        String[] socketAddress = domain.split(":");
-        String domainAddress = socketAddress[0];
-        int port = Integer.parseInt(socketAddress[1]);
-
-        try (Socket socket = new Socket(domainAddress, port)) {
-            this.localAddress = socket.getLocalAddress();
-            this.localPort = socket.getLocalPort();
-            ioTool = new SocketIOTool(
-                    new OutputStreamWriter(socket.getOutputStream()),
-                    new InputStreamReader(socket.getInputStream())
-            );
-
+    /**
+     * Sends one email, reusing the given connection for a further transaction if there is one. On failure the
+     * connection is closed.
+     *
+     * @return the connection to use for the next email
+     * @throws IOException          if the mailbox server could not be reached or closed the connection
+     * @throws DMTProtocolException if the mailbox server rejected the email
+     * @throws InterruptedException if interrupted while waiting for a connection
+     */
+    private DmtpConnection sendEmail(DmtpConnection connection, Delivery delivery)
+            throws IOException, InterruptedException {
+        Email email = delivery.getEmail();
+        long start = System.nanoTime();
+        try {
             audit.info("Consumer beginning transferring " + email);
-            if (!Objects.equals(ioTool.read(), OK + " DMTP")) {
-                throw new DMTProtocolException("No response after connecting");
+            if (connection == null) {
+                connection = connections.borrow(destination.getEndpoint(), destination.getAddress(),
+                        destination.isCompressed());
+            } else {
+                connection.begin();
             }
+            this.localAddress = connection.getSocket().getLocalAddress();
+            this.localPort = connection.getSocket().getLocalPort();
 
-            begin();
-            to(email.getRecipientsForDMTP(), email.getRecipients().length);
-            from(email.getSender());
-            subject(email.getSubject());
-            data(email.getData());
-            send();
+            connection.transfer(email, delivery.getRecipients(), delivery.getRecipientCount());
             audit.info(email + " was sent");
-            sendToMonitorServer(email.getSender());
-            quit();
-
-        } catch (UnknownHostException e) {
-            errors.log(Level.SEVERE, "Cannot connect to host: " + e.getMessage(), e);
-        } catch (SocketException e) {
-            errors.log(Level.SEVERE, "SocketException while handling socket: " + e.getMessage(), e);
-        } catch (IOException e) {
-            errors.log(Level.SEVERE, e.getMessage(), e);
-            throw new UncheckedIOException(e);
-        }
-    }
-
-    private void sendToMonitorServer(String sender) {
-        try (DatagramSocket socket = new DatagramSocket()) {
-            byte[] buffer;
-            DatagramPacket packet;
-
-            // send request-packet to server
-            String monitorData = localAddress.getHostAddress() + ":" + localPort + " " + sender;
-            buffer = monitorData.getBytes();
-            packet = new DatagramPacket(buffer, buffer.length, monitoringHost, monitoringPort);
-            audit.info("send data to monitor server: " + monitorData + monitoringHost + monitoringPort);
-            socket.send(packet);
-
-            // create a fresh packet
-            // wait for response-packet from server
-            packet = new DatagramPacket(new byte[1024], 1024);
-            socket.receive(packet);
-            String response = new String(packet.getData()).replace("\u0000","");
-            audit.info("Received response from Monitoring Server: " + response);
-
-        } catch (UnknownHostException e) {
-            errors.log(Level.SEVERE, "Cannot connect to host: " + e.getMessage(), e);
-        } catch (SocketException e) {
-            errors.log(Level.SEVERE, "SocketException: " + e.getMessage(), e);
-        } catch (IOException e) {
-            errors.log(Level.SEVERE, e.getMessage(), e);
-            throw new UncheckedIOException(e);
-        }
-    }
-
-    @Override
-    public void begin() throws IOException {
-        sendLine(BEGIN);
-    }
-
-    @Override
-    public void to(String addresses, int numberOfRecipients) throws IOException {
-        ioTool.write(TO + addresses);
-        if (!ioTool.read().startsWith(OK)) {
-            throw new DMTProtocolException("Error sending " + TO + addresses);
-        }
-    }
-
-    @Override
-    public void from(String sender) throws IOException {
-        sendLine(FROM + sender);
-    }
-
-    @Override
-    public void subject(String subject) throws IOException {
-        sendLine(SUBJECT + subject);
-    }
-
-    @Override
-    public void data(String data) throws IOException {
-        sendLine(DATA + data);
-    }
-
-    @Override
-    public void send() throws IOException {
-        sendLine(SEND);
-    }
-
-    @Override
-    public void quit() {
-        ioTool.write(QUIT);
-    }
-
-    private void sendLine(String line) throws IOException {
-        ioTool.write(line);
-        if (!Objects.equals(ioTool.read(), OK)) {
-            throw new DMTProtocolException("Error sending " + line);
+            long nanos = System.nanoTime() - start;
+            destination.recordDelivered(nanos);
+            connections.recordSuccess(destination.getEndpoint(), nanos);
+            return connection;
+
+        } catch (IOException | DMTProtocolException e) {
+            destination.recordFailed();
+            if (e instanceof DMTProtocolException) {
+                // the mailbox server is alive, it just did not take this email
+                connections.recordSuccess(destination.getEndpoint(), System.nanoTime() - start);
+            } else if (!(e instanceof CircuitOpenException)) {
+                connections.recordFailure(destination.getEndpoint());
+            }
+            if (connection != null) {
+                connections.invalidate(connection);
+            }
+            throw e;
         }
     }
 }
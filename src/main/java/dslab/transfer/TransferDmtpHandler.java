@@ -0,0 +1,66 @@
+package dslab.transfer;
+
+import dslab.dtos.Email;
+import dslab.protocols.CommandParser;
+import dslab.protocols.DmtpSessionHandler;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The transfer server side of DMTP: any syntactically valid recipient is taken and complete emails are handed to
+ * the {@link DeliveryRouter}, unless their sender, sender domain or client exceeds its {@link RateLimiter} limit.
+ */
+public class TransferDmtpHandler implements DmtpSessionHandler {
+
+    private static final Logger audit = Logger.getLogger("requests");
+    private static final Logger errors = Logger.getLogger("errors");
+
+    private final DeliveryRouter router;
+    private final RateLimiter limiter;
+
+    public TransferDmtpHandler(DeliveryRouter router, RateLimiter limiter) {
+        this.router = router;
+        this.limiter = limiter;
+    }
+
+    @Override
+    public String recipients(Email email, CommandParser command) {
+        // validate and count on the raw bytes, the addresses are only decoded once they are accepted
+        int recipients = command.scanAddresses();
+        if (recipients < 0) {
+            audit.log(Level.SEVERE, "error invalid email pattern " + command.invalidAddress());
+            return "error invalid email pattern " + command.invalidAddress();
+        }
+        email.setRecipients(command.argumentString().split(","));
+        return OK + " " + recipients;
+    }
+
+    @Override
+    public String store(Email email, InetAddress client) throws InterruptedException {
+        String address = client != null ? client.getHostAddress() : null;
+        RateLimiter.Kind exceeded = limiter.acquire(email.getSender(), address);
+        if (exceeded != null) {
+            audit.info(email + " was turned away, " + exceeded.name().toLowerCase() + " rate limit exceeded");
+            return "error " + exceeded.name().toLowerCase() + " rate limit exceeded, try later";
+        }
+        try {
+            // admission control turns the email away rather than let a full queue block the session; only the
+            // spool commit can still hold it up briefly
+            if (!router.route(email)) {
+                // the client retries later, the rejection must not count against its limits
+                limiter.release(email.getSender(), address);
+                audit.info(email + " was turned away, the server is busy");
+                return BUSY;
+            }
+            audit.info(email + " was received and will be transferred");
+            return OK;
+        } catch (IOException e) {
+            limiter.release(email.getSender(), address);
+            errors.log(Level.SEVERE, "Could not spool email: " + e.getMessage(), e);
+            return "error could not store email";
+        }
+    }
+}
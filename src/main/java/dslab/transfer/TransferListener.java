@@ -1,17 +1,15 @@
 package dslab.transfer;
 
-import dslab.dtos.Email;
+import dslab.protocols.DmtpSessionPool;
 
 import java.io.IOException;
-import java.net.InetAddress;
+import java.io.InterruptedIOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -19,51 +17,79 @@ public class TransferListener extends Thread {
 
     private static final Logger audit = Logger.getLogger("requests");
     private static final Logger errors = Logger.getLogger("errors");
-    private static final BlockingQueue<Email> queue = new LinkedBlockingDeque<>(100);
+
+    private static final long ACCEPT_PAUSE_MILLIS = 10;
+
+    protected final DeliveryRouter router;
+    protected final DmtpSessionPool sessions;
+    protected final ExecutorService pool = Executors.newFixedThreadPool(20);
 
     private final ServerSocket server;
-    private final ExecutorService pool = Executors.newFixedThreadPool(20);
     private final List<Socket> connections = new ArrayList<>();
 
-    public TransferListener(ServerSocket server, InetAddress monitoringHost, int monitoringPort) {
+    public TransferListener(ServerSocket server, DeliveryRouter router, DmtpSessionPool sessions) {
         this.server = server;
-        for (int i = 0; i < 10; i++) {
-            Runnable consumerThread = new TransferConsumerThread(queue, monitoringHost, monitoringPort);
-            pool.submit(consumerThread);
-        }
+        this.router = router;
+        this.sessions = sessions;
     }
 
     @Override
     public void run() {
         audit.info("start listening for connections");
         try {
-            while (true) {
-                Socket connection = server.accept();
-                connections.add(connection);
-                Runnable task = new TransferProducerThread(connection, queue);
-                pool.submit(task);
-            }
+            acceptConnections();
         } catch (IOException e) {
             errors.log(Level.SEVERE, e.getMessage(), e);
         } catch (RuntimeException e) {
             errors.log(Level.SEVERE, e.getMessage(), e);
         } finally {
             audit.info("shutting down");
-            try {
-                for (int i = 0; i < 1; i++) {
-                    queue.put(new Email(null, "@@", null, null));
-                }
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            }
-            connections.forEach(con -> {
-                try {
-                    con.close();
-                } catch (IOException e) {
-                    // ignore
-                }
-            });
+            closeConnections();
             pool.shutdownNow();
         }
     }
+
+    /**
+     * Accepts client connections until the server socket is closed and serves each one with a pooled session.
+     *
+     * @throws IOException if accepting fails, e.g. because the socket was closed
+     */
+    protected void acceptConnections() throws IOException {
+        while (true) {
+            awaitAccepting();
+            Socket connection = server.accept();
+            connections.add(connection);
+            pool.submit(() -> sessions.serve(connection));
+        }
+    }
+
+    /**
+     * Waits while the router is saturated and wants no new clients. They queue up in the backlog of the server socket
+     * meanwhile.
+     *
+     * @throws IOException if interrupted while waiting
+     */
+    protected void awaitAccepting() throws IOException {
+        try {
+            while (router.isAcceptingPaused()) {
+                Thread.sleep(ACCEPT_PAUSE_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while accepting was paused");
+        }
+    }
+
+    /**
+     * Closes all client connections that are still open.
+     */
+    protected void closeConnections() {
+        connections.forEach(con -> {
+            try {
+                con.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        });
+    }
 }
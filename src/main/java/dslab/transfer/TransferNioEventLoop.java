@@ -0,0 +1,124 @@
+package dslab.transfer;
+
+import dslab.protocols.DmtpSessionPool;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drives the DMTP sessions of many non-blocking client channels from a single selector thread.
+ */
+public class TransferNioEventLoop implements Runnable {
+
+    private static final Logger audit = Logger.getLogger("requests");
+    private static final Logger errors = Logger.getLogger("errors");
+
+    private final Selector selector;
+    private final DmtpSessionPool sessions;
+    private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    public TransferNioEventLoop(DmtpSessionPool sessions) throws IOException {
+        this.selector = Selector.open();
+        this.sessions = sessions;
+    }
+
+    /**
+     * Hands a freshly accepted channel to this event loop. Registration happens on the selector thread.
+     *
+     * @param channel the accepted client channel
+     */
+    public void register(SocketChannel channel) {
+        pending.add(channel);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        audit.info("starting DMTP event loop");
+        try {
+            while (running && !Thread.currentThread().isInterrupted()) {
+                selector.select();
+                registerPending();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            errors.log(Level.SEVERE, e.getMessage(), e);
+        } finally {
+            closeSessions();
+        }
+    }
+
+    /**
+     * Stops the event loop and closes all of its client connections.
+     */
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = pending.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                TransferNioSession session = new TransferNioSession(key, sessions);
+                key.attach(session);
+                session.open();
+            } catch (IOException e) {
+                errors.log(Level.WARNING, "Could not register client: " + e.getMessage(), e);
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        TransferNioSession session = (TransferNioSession) key.attachment();
+        try {
+            if (key.isValid() && key.isReadable()) {
+                session.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                session.onWritable();
+            }
+        } catch (IOException e) {
+            errors.log(Level.WARNING, "Closing session after I/O error: " + e.getMessage(), e);
+            session.close();
+        }
+    }
+
+    private void closeSessions() {
+        for (SelectionKey key : selector.keys()) {
+            closeQuietly((SocketChannel) key.channel());
+        }
+        pending.forEach(this::closeQuietly);
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package dslab.transfer;
+
+import dslab.protocols.DmtpSessionPool;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Accepts DMTP clients on a server channel and hands them to a small set of selector event loops, so an idle client
+ * does not tie up a pooled thread like in the blocking mode.
+ */
+public class TransferNioListener extends TransferListener {
+
+    private final ServerSocketChannel channel;
+    private final TransferNioEventLoop[] eventLoops;
+    private int nextEventLoop;
+
+    public TransferNioListener(ServerSocketChannel channel, DeliveryRouter router, DmtpSessionPool sessions,
+                               int selectorThreads) throws IOException {
+        super(channel.socket(), router, sessions);
+        this.channel = channel;
+        this.eventLoops = new TransferNioEventLoop[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++) {
+            eventLoops[i] = new TransferNioEventLoop(sessions);
+            new Thread(eventLoops[i], "dmtp-selector-" + i).start();
+        }
+    }
+
+    @Override
+    protected void acceptConnections() throws IOException {
+        while (true) {
+            awaitAccepting();
+            // the server channel stays in blocking mode, only the client channels are multiplexed
+            SocketChannel connection = channel.accept();
+            eventLoops[nextEventLoop].register(connection);
+            nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+        }
+    }
+
+    @Override
+    protected void closeConnections() {
+        for (TransferNioEventLoop eventLoop : eventLoops) {
+            eventLoop.close();
+        }
+    }
+}
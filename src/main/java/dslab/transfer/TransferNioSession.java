@@ -0,0 +1,85 @@
+package dslab.transfer;
+
+import dslab.protocols.DmtpSession;
+import dslab.protocols.DmtpSessionPool;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Logger;
+
+/**
+ * Connects a pooled {@link DmtpSession} to one non-blocking client channel. Incoming bytes are handed to the session
+ * as they arrive, its responses are written whenever the channel is writable.
+ */
+public class TransferNioSession {
+
+    private static final Logger audit = Logger.getLogger("requests");
+
+    private final SelectionKey key;
+    private final SocketChannel channel;
+    private final DmtpSessionPool sessions;
+    private DmtpSession session;
+
+    public TransferNioSession(SelectionKey key, DmtpSessionPool sessions) {
+        this.key = key;
+        this.channel = (SocketChannel) key.channel();
+        this.sessions = sessions;
+        this.session = sessions.acquire();
+    }
+
+    /**
+     * Greets the freshly connected client.
+     */
+    public void open() throws IOException {
+        audit.info("starting Producer session");
+        session.open(channel.socket().getInetAddress());
+        flush();
+    }
+
+    /**
+     * Reads whatever is available and handles every complete line.
+     */
+    public void onReadable() throws IOException {
+        int read = channel.read(session.input());
+        if (read == -1) {
+            close();
+            return;
+        }
+        session.onInput();
+        flush();
+    }
+
+    /**
+     * Writes pending responses once the channel accepts data again.
+     */
+    public void onWritable() throws IOException {
+        flush();
+    }
+
+    /**
+     * Closes the client channel, cancels its registration and returns the session to the pool.
+     */
+    public void close() {
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        if (session != null) {
+            sessions.release(session);
+            session = null;
+        }
+    }
+
+    private void flush() throws IOException {
+        if (!session.writeResponses(channel)) {
+            key.interestOps(SelectionKey.OP_WRITE);
+        } else if (session.isClosed()) {
+            close();
+        } else {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+}
@@ -1,17 +1,39 @@
 package dslab.transfer;
 
+import at.ac.tuwien.dsg.orvell.Input;
 import at.ac.tuwien.dsg.orvell.Shell;
 import at.ac.tuwien.dsg.orvell.StopShellException;
 import at.ac.tuwien.dsg.orvell.annotation.Command;
 import dslab.ComponentFactory;
+import dslab.protocols.DmtpSessionPool;
 import dslab.util.Config;
+import dslab.util.FairQueue;
+import dslab.util.LaneQueue;
+import dslab.util.RingBufferQueue;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.URISyntaxException;
+import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,12 +42,21 @@ public class TransferServer implements ITransferServer, Runnable {
     private static final Logger audit = Logger.getLogger("requests");
     private static final Logger errors = Logger.getLogger("errors");
 
+    private final Config config;
     private final int tcpPort;
-    private final InetAddress monitoringHost;
-    private final int monitoringPort;
+    private final MonitoringReporter monitoring;
+    private final boolean nioMode;
+    private final int selectorThreads;
+    private final DmtpConnectionPool connections;
+    private final URL domainsResource;
+    private final DeliveryWorkerPool deliveryWorkers;
+    private final DeliveryRouter router;
+    private final DmtpSessionPool sessions;
+    private final RateLimiter limiter;
     private final Shell shell;
     private ServerSocket dmtpSocket;
     private Thread listener;
+    private RoutingTableWatcher routingWatcher;
 
     /**
      * Creates a new server instance.
@@ -36,26 +67,123 @@ public class TransferServer implements ITransferServer, Runnable {
      * @param out         the output stream to write console output to
      */
     public TransferServer(String componentId, Config config, InputStream in, PrintStream out) {
+        this.config = config;
         this.tcpPort = config.getInt("tcp.port");
         try {
-            this.monitoringHost = InetAddress.getByName(config.getString("monitoring.host"));
+            this.monitoring = new MonitoringReporter(
+                    new InetSocketAddress(InetAddress.getByName(config.getString("monitoring.host")),
+                            config.getInt("monitoring.port")),
+                    config.getInt("monitoring.flush.interval.ms", 50),
+                    config.getInt("monitoring.queue.capacity", 10000));
         } catch (UnknownHostException e) {
             errors.log(Level.SEVERE, e.getMessage(), e);
             throw new RuntimeException(e);
         }
-        this.monitoringPort = config.getInt("monitoring.port");
+        this.nioMode = config.getString("dmtp.mode", "blocking").equals("nio");
+        this.selectorThreads = config.getInt("dmtp.nio.selectors", 2);
+        this.connections = new DmtpConnectionPool(
+                config.getInt("pool.max.per.endpoint", 4),
+                config.getInt("pool.idle.timeout.ms", 15000),
+                Boolean.parseBoolean(config.getString("dmtp.client.pipelining", "false")),
+                new DmtpConnection.Timeouts(
+                        config.getInt("dmtp.client.connect.timeout.ms", 3000),
+                        config.getInt("dmtp.client.read.timeout.ms", 10000)),
+                endpoint -> new CircuitBreaker(endpoint,
+                        config.getInt("breaker.failure.threshold", 5),
+                        config.getInt("breaker.latency.limit.ms", 0),
+                        config.getInt("breaker.open.ms", 5000),
+                        config.getInt("breaker.probes", 1)));
+        MailSpool spool = null;
+        if (Boolean.parseBoolean(config.getString("spool.enabled", "false"))) {
+            spool = new MailSpool(
+                    Paths.get(config.getString("spool.dir", "spool/" + componentId)),
+                    config.getInt("spool.segment.size", 4 * 1024 * 1024),
+                    MailSpool.FsyncPolicy.valueOf(config.getString("spool.fsync", "group").toUpperCase()),
+                    config.getInt("spool.group.commit.ms", 2));
+        }
+        this.domainsResource = TransferServer.class.getClassLoader().getResource("domains.properties");
+        this.deliveryWorkers = new DeliveryWorkerPool(
+                config.getInt("delivery.workers.per.destination", 3),
+                config.getInt("delivery.workers.min", 1),
+                config.getInt("delivery.workers.max", 8),
+                config.getInt("delivery.workers.adjust.interval.ms", 500),
+                config.getInt("delivery.workers.latency.target.ms", 200));
+        try {
+            this.router = new DeliveryRouter(
+                    RoutingTable.load(domainsResource),
+                    deliveryQueues(),
+                    deliveryWorkers,
+                    spool,
+                    new RetryScheduler(
+                            config.getInt("retry.initial.delay.ms", 1000),
+                            config.getInt("retry.max.delay.ms", 30000),
+                            config.getInt("retry.max.age.ms", 300000)),
+                    new AdmissionController(
+                            config.getInt("admission.high.watermark", 160),
+                            config.getInt("admission.low.watermark", 100),
+                            Boolean.parseBoolean(config.getString("admission.pause.accept", "true"))),
+                    compressedDomains(),
+                    new LoadBalancer(
+                            LoadBalancer.Policy.valueOf(config.getString("routing.balancing", "least-outstanding")
+                                    .toUpperCase().replace('-', '_')),
+                            connections::isAvailable),
+                    new DeliveryLanes(
+                            config.getInt("delivery.lanes.bulk.size", 65536),
+                            config.getInt("delivery.lanes.bulk.recipients", 10)),
+                    new BounceAggregator(
+                            config.getInt("bounce.window.ms", 2000),
+                            config.getInt("bounce.min.interval.ms", 60000),
+                            config.getInt("bounce.max.listed", 20)),
+                    new Stage<>("validate", config.getInt("stage.validate.threads", 1),
+                            config.getInt("stage.buffer.size", 256)),
+                    new Stage<>("route", config.getInt("stage.route.threads", 2),
+                            config.getInt("stage.buffer.size", 256)),
+                    new Stage<>("report", config.getInt("stage.report.threads", 2),
+                            config.getInt("stage.buffer.size", 256)));
+        } catch (IOException e) {
+            errors.log(Level.SEVERE, "Could not load domains: " + e.getMessage(), e);
+            throw new UncheckedIOException(e);
+        }
+        Path spillDirectory = Paths.get(config.getString("dmtp.data.spill.dir", "data/" + componentId));
+        try {
+            Files.createDirectories(spillDirectory);
+        } catch (IOException e) {
+            errors.log(Level.SEVERE, "Could not create " + spillDirectory + ": " + e.getMessage(), e);
+            throw new UncheckedIOException(e);
+        }
+        this.limiter = new RateLimiter(
+                config.getInt("ratelimit.shards", 16),
+                config.getInt("ratelimit.max.keys", 100000),
+                config.getInt("ratelimit.idle.expiry.ms", 60000));
+        for (RateLimiter.Kind kind : RateLimiter.Kind.values()) {
+            String key = "ratelimit." + kind.name().toLowerCase();
+            limiter.setLimit(kind, Double.parseDouble(config.getString(key, "0")),
+                    Double.parseDouble(config.getString(key + ".burst", "10")));
+        }
+        this.sessions = new DmtpSessionPool(new TransferDmtpHandler(router, limiter), config.getInt("dmtp.sessions.pooled", 64),
+                config.getInt("dmtp.data.spill.threshold", 64 * 1024), spillDirectory);
 
         shell = new Shell(in, out);
         shell.register(this);
+        shell.register("workers", (input, context) -> workers(input));
+        shell.register("limits", (input, context) -> limits(input));
         shell.setPrompt(componentId + " > ");
     }
 
     @Override
     public void run() {
         audit.info("starting Transfer Server");
-        try (ServerSocket socket = new ServerSocket(tcpPort)) {
+        try (ServerSocket socket = openServerSocket()) {
             dmtpSocket = socket;
-            listener = new TransferListener(dmtpSocket, monitoringHost, monitoringPort);
+            monitoring.start();
+            watchRoutes();
+            router.start(connections, monitoring,
+                    config.getInt("delivery.batch.size", 1), config.getInt("delivery.batch.linger.ms", 0));
+            if (nioMode) {
+                listener = new TransferNioListener(dmtpSocket.getChannel(), router, sessions, selectorThreads);
+            } else {
+                listener = new TransferListener(dmtpSocket, router, sessions);
+            }
             listener.start();
             shell.run();
         } catch (IOException e) {
@@ -67,6 +195,305 @@ public class TransferServer implements ITransferServer, Runnable {
         }
     }
 
+    /**
+     * CLI command to print the usage of pooled mailbox server connections.
+     */
+    @Command
+    public void pool() {
+        Map<String, String> statistics = connections.statistics();
+        if (statistics.isEmpty()) {
+            shell.out().println("no pooled connections");
+        }
+        statistics.forEach((endpoint, line) -> shell.out().println(endpoint + " " + line));
+    }
+
+    /**
+     * CLI command to print the size of the data sent compressed to every mailbox server, and the CPU time spent.
+     */
+    @Command
+    public void compression() {
+        Map<String, String> statistics = connections.compressionStatistics();
+        if (statistics.isEmpty()) {
+            shell.out().println("no compressed connections");
+        }
+        statistics.forEach((endpoint, line) -> shell.out().println(endpoint + " " + line));
+    }
+
+    /**
+     * CLI command to print how many client sessions are active, idle in the pool, newly created or reused.
+     */
+    @Command
+    public void sessions() {
+        shell.out().println(sessions.statistics());
+    }
+
+    /**
+     * CLI command to print the delivery consumers of every mailbox server, or to set them with
+     * {@code workers [host:port] <count>}.
+     */
+    private void workers(Input input) {
+        List<String> arguments = input.getArguments();
+        if (arguments.isEmpty()) {
+            deliveryWorkers.statistics().forEach((endpoint, line) -> shell.out().println(endpoint + " " + line));
+            return;
+        }
+        try {
+            String endpoint = arguments.size() > 1 ? arguments.get(0) : null;
+            int count = Integer.parseInt(arguments.get(arguments.size() - 1));
+            if (!deliveryWorkers.resize(endpoint, count)) {
+                shell.out().println("unknown mailbox server " + endpoint);
+                return;
+            }
+            shell.out().println("workers of " + (endpoint != null ? endpoint : "all mailbox servers") + " set to "
+                    + count);
+        } catch (IllegalArgumentException e) {
+            shell.out().println("usage: workers [host:port] <count>, " + e.getMessage());
+        }
+    }
+
+    /**
+     * CLI command to print the rate limits and how many emails they turned away, or to change one with
+     * {@code limits <sender|domain|client> <emails per second> [burst]}, 0 emails per second lifting it.
+     */
+    private void limits(Input input) {
+        List<String> arguments = input.getArguments();
+        if (arguments.isEmpty()) {
+            limiter.statistics().forEach((name, line) -> shell.out().println(name + " " + line));
+            return;
+        }
+        try {
+            RateLimiter.Kind kind = RateLimiter.Kind.valueOf(arguments.get(0).toUpperCase());
+            double rate = Double.parseDouble(arguments.get(1));
+            double burst = arguments.size() > 2 ? Double.parseDouble(arguments.get(2)) : Math.max(1, rate);
+            limiter.setLimit(kind, rate, burst);
+            shell.out().println(kind.name().toLowerCase() + " limit set to " + (rate == 0 ? "unlimited"
+                    : rate + "/s with a burst of " + burst));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            shell.out().println("usage: limits <sender|domain|client> <emails per second> [burst]");
+        }
+    }
+
+    /**
+     * CLI command to print depth and throughput of the delivery queue of every mailbox server.
+     */
+    @Command
+    public void queues() {
+        router.statistics().forEach((endpoint, line) -> shell.out().println(endpoint + " " + line));
+    }
+
+    /**
+     * CLI command to print how long emails take until all their deliveries are finished, and each mailbox server.
+     */
+    @Command
+    public void fanout() {
+        router.fanoutStatistics().forEach((name, line) -> shell.out().println(name + " " + line));
+    }
+
+    /**
+     * CLI command to print the latency percentiles of every delivery lane, from acceptance until the mailbox server
+     * has the email, and what is queued in each lane if the delivery queues have lanes.
+     */
+    @Command
+    public void lanes() {
+        if (!config.getString("delivery.queue.type", "ring").equals("lanes")) {
+            shell.out().println("queued by lane needs delivery.queue.type=lanes");
+        }
+        router.laneStatistics().forEach((lane, line) -> shell.out().println(lane + " " + line));
+    }
+
+    /**
+     * CLI command to print every stage an email passes through, with its threads, how full its buffer is, and how
+     * long emails wait in it and take to process (50th/99th percentile), to see where latency piles up.
+     */
+    @Command
+    public void stages() {
+        router.stageStatistics().forEach((stage, line) -> shell.out().println(stage + " " + line));
+    }
+
+    /**
+     * CLI command to print how many failures were reported in how many error emails, and the failures waiting for
+     * the next error email to each sender.
+     */
+    @Command
+    public void bounces() {
+        router.bounceStatistics().forEach((name, line) -> shell.out().println(name + " " + line));
+    }
+
+    /**
+     * CLI command to print the queued deliveries of every sender, the largest backlog first, if the delivery queues
+     * are fair queues.
+     */
+    @Command
+    public void backlog() {
+        Map<String, String> backlog = router.backlogStatistics();
+        if (backlog.isEmpty()) {
+            shell.out().println(config.getString("delivery.queue.type", "ring").equals("fair")
+                    ? "no backlog" : "backlog by sender needs delivery.queue.type=fair");
+        }
+        backlog.forEach((sender, line) -> shell.out().println(sender + " " + line));
+    }
+
+    /**
+     * CLI command to print whether the server takes new emails, and how many it accepted and turned away.
+     */
+    @Command
+    public void admission() {
+        shell.out().println(router.admissionStatistics());
+    }
+
+    /**
+     * CLI command to print the retry counters and the attempts and age of the deliveries waiting for a retry.
+     */
+    @Command
+    public void retries() {
+        router.retryStatistics().forEach((name, line) -> shell.out().println(name + " " + line));
+    }
+
+    /**
+     * CLI command to print how many delivery records were sent to the monitoring server, dropped or rejected.
+     */
+    @Command
+    public void monitor() {
+        shell.out().println(monitoring.statistics());
+    }
+
+    /**
+     * CLI command to print the state of the spool.
+     */
+    @Command
+    public void spool() {
+        String statistics = router.spoolStatistics();
+        shell.out().println(statistics != null ? statistics : "spool disabled");
+    }
+
+    /**
+     * CLI command to print the mailbox servers of every domain with their health, load and latency.
+     */
+    @Command
+    public void endpoints() {
+        router.endpointStatistics().forEach((domain, line) -> shell.out().println(domain + " " + line));
+    }
+
+    /**
+     * CLI command to print the circuit breaker state of the mailbox server of every domain.
+     */
+    @Command
+    public void breakers() {
+        Map<String, String> statistics = connections.breakerStatistics();
+        router.getRoutes().domains().forEach((domain, endpoints) -> endpoints.forEach(endpoint ->
+                shell.out().println(domain + " " + endpoint + " "
+                        + statistics.getOrDefault(endpoint, "closed, not contacted yet"))));
+    }
+
+    /**
+     * CLI command to print the mailbox server and resolved address of every domain.
+     */
+    @Command
+    public void routes() {
+        RoutingTable routes = router.getRoutes();
+        routes.domains().forEach((domain, endpoints) -> endpoints.forEach(endpoint ->
+                shell.out().println(domain + " " + endpoint + " " + routes.address(endpoint))));
+        shell.out().println(String.format("%d domains, reloaded %d times, %s", routes.domains().size(),
+                router.getReloads(), routingWatcher != null ? "watching " + domainsResource : "not watching"));
+    }
+
+    /**
+     * Starts reloading the routes when domains.properties changes, if enabled and the file is on disk.
+     */
+    private void watchRoutes() throws IOException {
+        if (!Boolean.parseBoolean(config.getString("routing.reload", "true"))
+                || !"file".equals(domainsResource.getProtocol())) {
+            return;
+        }
+        try {
+            routingWatcher = new RoutingTableWatcher(Paths.get(domainsResource.toURI()), router);
+        } catch (URISyntaxException e) {
+            errors.log(Level.WARNING, "Cannot watch " + domainsResource + ": " + e.getMessage());
+            return;
+        }
+        routingWatcher.start();
+    }
+
+    /**
+     * Parses {@code delivery.fair.weights}, e.g. {@code univer.ze:4,earth.planet:2}.
+     */
+    private Map<String, Integer> senderWeights() {
+        Map<String, Integer> weights = new HashMap<>();
+        for (String entry : config.getString("delivery.fair.weights", "").split(",")) {
+            int colon = entry.lastIndexOf(':');
+            if (colon > 0) {
+                weights.put(entry.substring(0, colon).trim(), Integer.parseInt(entry.substring(colon + 1).trim()));
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * Parses {@code delivery.lanes.weights}, e.g. {@code interactive:8,bulk:2,bounce:1}; lanes left out weigh 1.
+     */
+    private int[] laneWeights() {
+        int[] weights = new int[DeliveryLanes.Lane.values().length];
+        Arrays.fill(weights, 1);
+        for (String entry : config.getString("delivery.lanes.weights", "").split(",")) {
+            int colon = entry.lastIndexOf(':');
+            if (colon > 0) {
+                DeliveryLanes.Lane lane = DeliveryLanes.Lane.valueOf(entry.substring(0, colon).trim().toUpperCase());
+                weights[lane.ordinal()] = Integer.parseInt(entry.substring(colon + 1).trim());
+            }
+        }
+        return weights;
+    }
+
+    private Set<String> compressedDomains() {
+        Set<String> domains = new HashSet<>();
+        for (String domain : config.getString("dmtp.compression.domains", "").split(",")) {
+            if (!domain.isBlank()) {
+                domains.add(domain.trim());
+            }
+        }
+        return domains;
+    }
+
+    /**
+     * Returns the factory of the delivery queues configured by delivery.queue.type and delivery.queue.wait.
+     */
+    private Supplier<BlockingQueue<Delivery>> deliveryQueues() {
+        int capacity = config.getInt("delivery.queue.capacity", 100);
+        String type = config.getString("delivery.queue.type", "ring");
+        if (type.equals("linked")) {
+            return () -> new LinkedBlockingDeque<>(capacity);
+        }
+        if (type.equals("fair")) {
+            int maxPerSender = config.getInt("delivery.fair.max.per.sender", capacity / 2);
+            int quantum = config.getInt("delivery.fair.quantum", 4096);
+            Map<String, Integer> weights = senderWeights();
+            return () -> new FairQueue<>(capacity, maxPerSender, quantum, delivery -> delivery.getEmail().getSender(),
+                    sender -> weights.getOrDefault(sender.substring(sender.indexOf('@') + 1), 1), Delivery::getSize);
+        }
+        if (type.equals("lanes")) {
+            int maxPerLane = config.getInt("delivery.lanes.max.per.lane", capacity * 3 / 4);
+            LaneQueue.Scheduling scheduling = LaneQueue.Scheduling.valueOf(
+                    config.getString("delivery.lanes.scheduling", "strict").toUpperCase());
+            int[] weights = laneWeights();
+            long maxWait = config.getInt("delivery.lanes.max.wait.ms", 2000);
+            return () -> new LaneQueue<>(capacity, maxPerLane, scheduling, weights, maxWait,
+                    delivery -> delivery.getLane().ordinal());
+        }
+        RingBufferQueue.WaitStrategy waitStrategy = RingBufferQueue.WaitStrategy.valueOf(
+                config.getString("delivery.queue.wait", "blocking").toUpperCase().replace('-', '_'));
+        return () -> new RingBufferQueue<>(capacity, waitStrategy);
+    }
+
+    private ServerSocket openServerSocket() throws IOException {
+        if (!nioMode) {
+            return new ServerSocket(tcpPort);
+        }
+        // closing the socket adaptor closes the underlying channel as well
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(tcpPort));
+        return channel.socket();
+    }
+
     @Override
     @Command
     public void shutdown() {
@@ -78,7 +505,15 @@ public class TransferServer implements ITransferServer, Runnable {
                 errors.log(Level.SEVERE, e.getMessage(), e);
             }
         }
-        listener.interrupt();
+        if (listener != null) {
+            listener.interrupt();
+        }
+        if (routingWatcher != null) {
+            routingWatcher.close();
+        }
+        router.shutdown();
+        connections.close();
+        monitoring.close();
         throw new StopShellException();
     }
 
@@ -52,6 +52,29 @@ public final class Config {
         return Integer.parseInt(getString(key));
     }
 
+    /**
+     * Returns the value as String for the given key, or the given default if the key is not configured.
+     *
+     * @param key          the property's key
+     * @param defaultValue the value returned if the key is missing
+     * @return String value of the property
+     */
+    public String getString(String key, String defaultValue) {
+        return containsKey(key) ? getString(key) : defaultValue;
+    }
+
+    /**
+     * Returns the value as {@code int} for the given key, or the given default if the key is not configured.
+     *
+     * @param key          the property's key
+     * @param defaultValue the value returned if the key is missing
+     * @return int value of the property
+     * @throws NumberFormatException if the String cannot be parsed to an Integer
+     */
+    public int getInt(String key, int defaultValue) {
+        return containsKey(key) ? getInt(key) : defaultValue;
+    }
+
     public boolean containsKey(String key) {
         return properties.containsKey(key) || bundle.containsKey(key);
     }
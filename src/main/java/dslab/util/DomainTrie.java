@@ -0,0 +1,89 @@
+package dslab.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable map from domain names to values, stored as a trie of their labels from right to left
+ * ({@code earth.planet} becomes {@code planet -> earth}). Besides exact lookups it finds the longest listed domain a
+ * name ends with, e.g. {@code earth.planet} for {@code mail.earth.planet}, in time proportional to the number of
+ * labels. Domain names are compared case-insensitively.
+ *
+ * @param <V> the type of the values
+ */
+public final class DomainTrie<V> {
+
+    private final Node<V> root = new Node<>();
+    private final int size;
+
+    /**
+     * @param entries the values by domain name
+     */
+    public DomainTrie(Map<String, V> entries) {
+        entries.forEach((domain, value) -> {
+            Node<V> node = root;
+            for (String label : reversedLabels(domain)) {
+                node = node.children.computeIfAbsent(label, l -> new Node<>());
+            }
+            node.value = value;
+        });
+        this.size = entries.size();
+    }
+
+    /**
+     * Returns the value of exactly this domain.
+     *
+     * @param domain the domain name
+     * @return the value or null if the domain is not listed
+     */
+    public V get(String domain) {
+        Node<V> node = root;
+        for (String label : reversedLabels(domain)) {
+            node = node.children.get(label);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node.value;
+    }
+
+    /**
+     * Returns the value of the longest listed domain that is the given domain or one of its parent domains.
+     *
+     * @param domain the domain name
+     * @return the value or null if neither the domain nor any parent is listed
+     */
+    public V findSuffix(String domain) {
+        Node<V> node = root;
+        V match = null;
+        for (String label : reversedLabels(domain)) {
+            node = node.children.get(label);
+            if (node == null) {
+                break;
+            }
+            if (node.value != null) {
+                match = node.value;
+            }
+        }
+        return match;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static String[] reversedLabels(String domain) {
+        String[] labels = domain.toLowerCase().split("\\.");
+        for (int i = 0, j = labels.length - 1; i < j; i++, j--) {
+            String label = labels[i];
+            labels[i] = labels[j];
+            labels[j] = label;
+        }
+        return labels;
+    }
+
+    private static final class Node<V> {
+        private final Map<String, Node<V>> children = new HashMap<>(4);
+        private V value;
+    }
+}
@@ -0,0 +1,286 @@
+package dslab.util;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * A bounded blocking queue that keeps one sub-queue per key, e.g. per sender, and serves them by deficit round
+ * robin: every turn a sub-queue earns a quantum times its weight and may hand out elements as long as their cost
+ * is covered, so keys share the consumers in proportion to their weights no matter how much each one queued. Besides
+ * the overall capacity, every key may only hold a limited number of elements, so a single key cannot fill the queue
+ * and lock the others out; producers of a key at its limit wait or fail just like at the overall capacity. Empty
+ * sub-queues are dropped, so the memory used stays bounded by the elements queued.
+ *
+ * @param <E> the type of the elements
+ */
+public class FairQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    private final int capacity;
+    private final int maxPerKey;
+    private final long quantum;
+    private final Function<E, String> key;
+    private final ToIntFunction<String> weight;
+    private final ToLongFunction<E> cost;
+    private final Map<String, SubQueue<E>> queues = new HashMap<>();
+    private final Deque<SubQueue<E>> active = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private int count;
+
+    /**
+     * @param capacity  the elements the queue holds at most
+     * @param maxPerKey the elements one key holds at most
+     * @param quantum   the cost a sub-queue of weight 1 may serve per turn
+     * @param key       the key of an element
+     * @param weight    the weight of a key, at least 1
+     * @param cost      the cost of an element, e.g. its size
+     */
+    public FairQueue(int capacity, int maxPerKey, long quantum, Function<E, String> key, ToIntFunction<String> weight,
+                     ToLongFunction<E> cost) {
+        if (capacity <= 0 || maxPerKey <= 0 || quantum <= 0) {
+            throw new IllegalArgumentException("capacity, limit per key and quantum must be positive");
+        }
+        this.capacity = capacity;
+        this.maxPerKey = Math.min(maxPerKey, capacity);
+        this.quantum = quantum;
+        this.key = key;
+        this.weight = weight;
+        this.cost = cost;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        Objects.requireNonNull(e);
+        lock.lock();
+        try {
+            return enqueue(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        Objects.requireNonNull(e);
+        lock.lockInterruptibly();
+        try {
+            while (!enqueue(e)) {
+                notFull.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        Objects.requireNonNull(e);
+        long remaining = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (!enqueue(e)) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = notFull.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E poll() {
+        lock.lock();
+        try {
+            return count == 0 ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (remaining <= 0) {
+                    return null;
+                }
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the element that would be served next by the round robin without moving it forward, approximately:
+     * the head of the sub-queue whose turn it is.
+     */
+    @Override
+    public E peek() {
+        lock.lock();
+        try {
+            return active.isEmpty() ? null : active.peekFirst().elements.peekFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            while (drained < maxElements && count > 0) {
+                c.add(dequeue());
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the elements, sub-queue by sub-queue. It does not support removal.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        lock.lock();
+        try {
+            List<E> snapshot = new ArrayList<>(count);
+            for (SubQueue<E> queue : active) {
+                snapshot.addAll(queue.elements);
+            }
+            return Collections.unmodifiableList(snapshot).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of queued elements of every key that has any.
+     *
+     * @return the backlog by key
+     */
+    public Map<String, Integer> backlog() {
+        lock.lock();
+        try {
+            Map<String, Integer> backlog = new TreeMap<>();
+            queues.forEach((k, queue) -> backlog.put(k, queue.elements.size()));
+            return backlog;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean enqueue(E e) {
+        if (count >= capacity) {
+            return false;
+        }
+        String k = key.apply(e);
+        SubQueue<E> queue = queues.get(k);
+        if (queue == null) {
+            queue = new SubQueue<>(k, Math.max(1, weight.applyAsInt(k)));
+            queues.put(k, queue);
+            active.addLast(queue);
+        } else if (queue.elements.size() >= maxPerKey) {
+            return false;
+        }
+        queue.elements.addLast(e);
+        count++;
+        notEmpty.signal();
+        return true;
+    }
+
+    private E dequeue() {
+        while (true) {
+            SubQueue<E> queue = active.peekFirst();
+            E head = queue.elements.peekFirst();
+            long headCost = Math.max(0, cost.applyAsLong(head));
+            if (queue.deficit < headCost && active.size() > 1) {
+                // its turn is over, it earns the next quantum when it is at the front again
+                queue.deficit += quantum * queue.weight;
+                active.addLast(active.pollFirst());
+                continue;
+            }
+            queue.elements.pollFirst();
+            queue.deficit = Math.max(0, queue.deficit - headCost);
+            if (queue.elements.isEmpty()) {
+                active.pollFirst();
+                queues.remove(queue.key);
+            }
+            count--;
+            notFull.signalAll();
+            return head;
+        }
+    }
+
+    private static final class SubQueue<E> {
+        private final String key;
+        private final int weight;
+        private final Deque<E> elements = new ArrayDeque<>();
+        private long deficit;
+
+        private SubQueue(String key, int weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+    }
+}
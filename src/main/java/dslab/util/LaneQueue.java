@@ -0,0 +1,344 @@
+package dslab.util;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+/**
+ * A bounded blocking queue with a FIFO lane per priority, lane 0 being the most urgent. Lanes are served either
+ * strictly by priority or by smooth weighted round robin, where every lane with elements gets turns in proportion to
+ * its weight, interleaved rather than in runs. Either way, an element that has been waiting longer than the maximum
+ * wait is served before the lanes of higher priority, so a steady flow of urgent elements cannot starve the others.
+ * Every lane may only hold a limited number of elements, so a full low-priority lane does not take the room of the
+ * urgent ones; producers of a lane at its limit wait or fail just like at the overall capacity.
+ *
+ * @param <E> the type of the elements
+ */
+public class LaneQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    /**
+     * How the lanes are served.
+     */
+    public enum Scheduling {
+        STRICT, WEIGHTED
+    }
+
+    private final int capacity;
+    private final int maxPerLane;
+    private final long maxWaitNanos;
+    private final Scheduling scheduling;
+    private final ToIntFunction<E> lane;
+    private final int[] weights;
+    private final ArrayDeque<Node<E>>[] lanes;
+    private final long[] currentWeights;
+    private final long[] promoted;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private int count;
+
+    /**
+     * @param capacity      the elements the queue holds at most
+     * @param maxPerLane    the elements one lane holds at most
+     * @param scheduling    how the lanes are served
+     * @param weights       the weight of every lane, at least 1, used by weighted scheduling; its length is the
+     *                      number of lanes
+     * @param maxWaitMillis how long an element may wait before it is served ahead of its lane's turn, 0 for no limit
+     * @param lane          the lane of an element, between 0 and the number of lanes - 1
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public LaneQueue(int capacity, int maxPerLane, Scheduling scheduling, int[] weights, long maxWaitMillis,
+                     ToIntFunction<E> lane) {
+        if (capacity <= 0 || maxPerLane <= 0 || weights.length == 0) {
+            throw new IllegalArgumentException("capacity, limit per lane and number of lanes must be positive");
+        }
+        this.capacity = capacity;
+        this.maxPerLane = Math.min(maxPerLane, capacity);
+        this.scheduling = scheduling;
+        this.weights = new int[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            this.weights[i] = Math.max(1, weights[i]);
+        }
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.lane = lane;
+        this.lanes = new ArrayDeque[weights.length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ArrayDeque<>();
+        }
+        this.currentWeights = new long[weights.length];
+        this.promoted = new long[weights.length];
+    }
+
+    @Override
+    public boolean offer(E e) {
+        Objects.requireNonNull(e);
+        lock.lock();
+        try {
+            return enqueue(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        Objects.requireNonNull(e);
+        lock.lockInterruptibly();
+        try {
+            while (!enqueue(e)) {
+                notFull.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        Objects.requireNonNull(e);
+        long remaining = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (!enqueue(e)) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = notFull.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E poll() {
+        lock.lock();
+        try {
+            return count == 0 ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (remaining <= 0) {
+                    return null;
+                }
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the head of the most urgent lane that has elements, which is not necessarily the one served next.
+     */
+    @Override
+    public E peek() {
+        lock.lock();
+        try {
+            for (ArrayDeque<Node<E>> queue : lanes) {
+                if (!queue.isEmpty()) {
+                    return queue.peekFirst().element;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            while (drained < maxElements && count > 0) {
+                c.add(dequeue());
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the elements, lane by lane. It does not support removal.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        lock.lock();
+        try {
+            List<E> snapshot = new ArrayList<>(count);
+            for (ArrayDeque<Node<E>> queue : lanes) {
+                queue.forEach(node -> snapshot.add(node.element));
+            }
+            return Collections.unmodifiableList(snapshot).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of elements in every lane.
+     */
+    public int[] depths() {
+        lock.lock();
+        try {
+            int[] depths = new int[lanes.length];
+            for (int i = 0; i < lanes.length; i++) {
+                depths[i] = lanes[i].size();
+            }
+            return depths;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many elements of every lane were served ahead of their turn because they waited too long.
+     */
+    public long[] promotions() {
+        lock.lock();
+        try {
+            return promoted.clone();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean enqueue(E e) {
+        int index = Math.max(0, Math.min(lanes.length - 1, lane.applyAsInt(e)));
+        if (count >= capacity || lanes[index].size() >= maxPerLane) {
+            return false;
+        }
+        lanes[index].addLast(new Node<>(e, System.nanoTime()));
+        count++;
+        notEmpty.signal();
+        return true;
+    }
+
+    private E dequeue() {
+        int next = scheduling == Scheduling.STRICT ? mostUrgent() : heaviest();
+        int overdue = overdue(next);
+        if (overdue >= 0) {
+            promoted[overdue]++;
+            next = overdue;
+        }
+        count--;
+        notFull.signalAll();
+        return lanes[next].pollFirst().element;
+    }
+
+    private int mostUrgent() {
+        int i = 0;
+        while (lanes[i].isEmpty()) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Smooth weighted round robin: every lane with elements gains its weight, the one with the most gained is served
+     * and gives back the total, so over time each lane is served in proportion to its weight.
+     */
+    private int heaviest() {
+        int next = -1;
+        long total = 0;
+        for (int i = 0; i < lanes.length; i++) {
+            if (lanes[i].isEmpty()) {
+                currentWeights[i] = 0;
+                continue;
+            }
+            currentWeights[i] += weights[i];
+            total += weights[i];
+            if (next < 0 || currentWeights[i] > currentWeights[next]) {
+                next = i;
+            }
+        }
+        currentWeights[next] -= total;
+        return next;
+    }
+
+    /**
+     * Returns the lane below the scheduled one whose head has waited longest beyond the maximum wait, or -1.
+     */
+    private int overdue(int scheduled) {
+        if (maxWaitNanos <= 0) {
+            return -1;
+        }
+        long deadline = System.nanoTime() - maxWaitNanos;
+        int overdue = -1;
+        long oldest = deadline;
+        for (int i = scheduled + 1; i < lanes.length; i++) {
+            Node<E> head = lanes[i].peekFirst();
+            if (head != null && head.enqueuedNanos - oldest < 0) {
+                oldest = head.enqueuedNanos;
+                overdue = i;
+            }
+        }
+        return overdue;
+    }
+
+    private static final class Node<E> {
+        private final E element;
+        private final long enqueuedNanos;
+
+        private Node(E element, long enqueuedNanos) {
+            this.element = element;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package dslab.util;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A bounded multi-producer multi-consumer queue on a preallocated ring of slots. Every slot carries a sequence number
+ * that tells producers and consumers whose turn it is, so offer and poll only need a compare-and-set on the tail or
+ * head counter and never allocate, and neither does waiting. How threads wait for room or for elements is up to the
+ * {@link WaitStrategy}.
+ *
+ * @param <E> the type of the elements
+ */
+public class RingBufferQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    /**
+     * How a thread waits for a slot or an element.
+     */
+    public enum WaitStrategy {
+        /**
+         * Yields a few times, then parks on a condition that is only signalled while someone waits. Costs the least
+         * CPU.
+         */
+        BLOCKING,
+        /**
+         * Spins briefly, then yields the processor between checks.
+         */
+        YIELDING,
+        /**
+         * Spins on the CPU. Lowest latency, but keeps a core busy per waiting thread.
+         */
+        BUSY_SPIN
+    }
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELDS_BEFORE_PARKING = 8;
+
+    private final int capacity;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final WaitStrategy waitStrategy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final AtomicInteger waiters = new AtomicInteger();
+    // created once, a lambda capturing this would be allocated on every wait
+    private final BooleanSupplier hasRoom = () -> remainingCapacity() > 0;
+    private final BooleanSupplier hasElements = () -> size() > 0;
+
+    public RingBufferQueue(int capacity, WaitStrategy waitStrategy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.waitStrategy = waitStrategy;
+        this.elements = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    @Override
+    public boolean offer(E e) {
+        Objects.requireNonNull(e);
+        long position = tail.get();
+        while (true) {
+            int slot = (int) (position % capacity);
+            long difference = sequences.get(slot) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.set(slot, e);
+                    sequences.set(slot, position + 1);
+                    signal();
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // the slot still holds the element of the previous round
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    @Override
+    public E poll() {
+        long position = head.get();
+        while (true) {
+            int slot = (int) (position % capacity);
+            long difference = sequences.get(slot) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E e = elements.get(slot);
+                    elements.set(slot, null);
+                    sequences.set(slot, position + capacity);
+                    signal();
+                    return e;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    @Override
+    public E peek() {
+        long position = head.get();
+        int slot = (int) (position % capacity);
+        return sequences.get(slot) == position + 1 ? elements.get(slot) : null;
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        while (!offer(e)) {
+            await(hasRoom, Long.MAX_VALUE);
+        }
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!offer(e)) {
+            if (!await(hasRoom, deadline)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        E e;
+        while ((e = poll()) == null) {
+            await(hasElements, Long.MAX_VALUE);
+        }
+        return e;
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        E e;
+        while ((e = poll()) == null) {
+            if (!await(hasElements, deadline)) {
+                return null;
+            }
+        }
+        return e;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        int drained = 0;
+        E e;
+        while (drained < maxElements && (e = poll()) != null) {
+            c.add(e);
+            drained++;
+        }
+        return drained;
+    }
+
+    @Override
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the published elements. It does not support removal.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        List<E> snapshot = new ArrayList<>();
+        for (long position = head.get(), end = tail.get(); position < end; position++) {
+            int slot = (int) (position % capacity);
+            E e = elements.get(slot);
+            if (e != null && sequences.get(slot) == position + 1) {
+                snapshot.add(e);
+            }
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    /**
+     * Waits until the condition may hold or the deadline passes.
+     *
+     * @param deadline the {@link System#nanoTime()} to give up at, or {@link Long#MAX_VALUE} to wait forever
+     * @return false if the deadline passed
+     */
+    private boolean await(BooleanSupplier condition, long deadline) throws InterruptedException {
+        boolean timed = deadline != Long.MAX_VALUE;
+        if (waitStrategy == WaitStrategy.BLOCKING) {
+            // most waits are short, parking only pays off for the long ones
+            for (int tries = 0; tries < YIELDS_BEFORE_PARKING; tries++) {
+                if (condition.getAsBoolean()) {
+                    return true;
+                }
+                Thread.yield();
+            }
+            lock.lockInterruptibly();
+            waiters.incrementAndGet();
+            try {
+                // checked after registering as waiter, so a concurrent signal() cannot get lost
+                while (!condition.getAsBoolean()) {
+                    if (!timed) {
+                        changed.await();
+                    } else {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            return false;
+                        }
+                        changed.awaitNanos(remaining);
+                    }
+                }
+                return true;
+            } finally {
+                waiters.decrementAndGet();
+                lock.unlock();
+            }
+        }
+
+        for (int tries = 0; !condition.getAsBoolean(); tries++) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (timed && deadline - System.nanoTime() <= 0) {
+                return false;
+            }
+            if (waitStrategy == WaitStrategy.YIELDING && tries >= SPIN_TRIES) {
+                Thread.yield();
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+        return true;
+    }
+
+    private void signal() {
+        if (waiters.get() > 0) {
+            lock.lock();
+            try {
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
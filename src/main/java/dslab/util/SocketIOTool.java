@@ -16,6 +16,19 @@ public class SocketIOTool {
         out.flush();
     }
 
+    /**
+     * Buffers a line without flushing, so several lines can go out in one write.
+     *
+     * @param message the line to write
+     */
+    public void append(String message) {
+        out.println(message);
+    }
+
+    public void flush() {
+        out.flush();
+    }
+
     public String read() throws IOException {
         return in.readLine();
     }
@@ -88,4 +88,21 @@ public class MonitoringServerProtocolTest extends TestBase {
         assertThat(output, containsString("127.0.0.1:42 2"));
         assertThat(output, containsString("127.0.0.1:43 1"));
     }
+
+    @Test(timeout = 15000)
+    public void packetWithSeveralRecords_countsEveryRecord() throws Exception {
+        LOG.info("Sending one monitoring packet with three records to monitoring socket");
+        try (DatagramSocket socket = new DatagramSocket()) {
+            String str = "127.0.0.1:42 foo@example.com\n127.0.0.1:43 foo@example.com\n127.0.0.1:42 bar@example.com";
+
+            socket.send(new DatagramPacket(str.getBytes(), str.length(), addr));
+        }
+
+        Thread.sleep(2500);
+        in.addLine("addresses"); // send "addresses" command to command line
+        Thread.sleep(2500);
+        String output = String.join(",", out.getLines());
+        assertThat(output, containsString("foo@example.com 2"));
+        assertThat(output, containsString("bar@example.com 1"));
+    }
 }
@@ -0,0 +1,123 @@
+package dslab.protocols;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the string based command handling of the blocking producer threads with {@link CommandParser} on DMTP
+ * sessions with many recipients, reporting throughput and the bytes allocated per session. Run with
+ * {@code java dslab.protocols.CommandParserBenchmark [recipients] [sessions]}.
+ */
+public class CommandParserBenchmark {
+
+    private static final int WARMUP_ROUNDS = 3;
+
+    private static long sink;
+
+    public static void main(String[] args) throws IOException {
+        int recipients = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        String session = session(recipients);
+        byte[] bytes = session.getBytes(StandardCharsets.US_ASCII);
+
+        System.out.println(recipients + " recipients, " + bytes.length + " bytes per session");
+        for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+            boolean report = round == WARMUP_ROUNDS;
+            measure("readLine + regex", report, sessions, () -> readerSession(session));
+            measure("CommandParser", report, sessions, () -> parserSession(bytes));
+        }
+    }
+
+    private interface Session {
+        void run() throws IOException;
+    }
+
+    private static void measure(String name, boolean report, int sessions, Session session) throws IOException {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            session.run();
+        }
+        long nanos = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+        if (report) {
+            System.out.printf("  %-18s %10.0f sessions/s %10d bytes/session%n", name, sessions / (nanos / 1e9),
+                    allocated / sessions);
+        }
+    }
+
+    /**
+     * The string based command handling the producer threads had before the parser.
+     */
+    private static void readerSession(String session) throws IOException {
+        BufferedReader reader = new BufferedReader(new StringReader(session));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("begin")) {
+                sink++;
+            } else if (line.startsWith("to ")) {
+                String[] addresses = line.substring(3).split(",");
+                for (String address : addresses) {
+                    if (!Pattern.matches("[A-Za-z0-9.]*@[A-Za-z0-9.]*", address)) {
+                        throw new IllegalStateException(address);
+                    }
+                }
+                sink += addresses.length;
+            } else if (line.startsWith("from ") || line.startsWith("subject ") || line.startsWith("data ")) {
+                sink += line.substring(line.indexOf(' ') + 1).length();
+            } else if (line.startsWith("send") || line.startsWith("quit")) {
+                sink++;
+            }
+        }
+    }
+
+    /**
+     * The same session parsed in place; only the arguments the session keeps are decoded.
+     */
+    private static void parserSession(byte[] session) {
+        ByteBuffer buffer = ByteBuffer.wrap(session);
+        CommandParser parser = new CommandParser(StandardCharsets.US_ASCII);
+        int start = 0;
+        for (int i = 0; i < session.length; i++) {
+            if (session[i] != '\n') {
+                continue;
+            }
+            buffer.limit(i).position(start);
+            switch (parser.parse(buffer)) {
+                case TO:
+                    int addresses = parser.scanAddresses();
+                    if (addresses < 0) {
+                        throw new IllegalStateException(parser.invalidAddress());
+                    }
+                    sink += addresses;
+                    break;
+                case FROM:
+                case SUBJECT:
+                case DATA:
+                    sink += parser.argumentEnd() - parser.argumentStart();
+                    break;
+                default:
+                    sink++;
+            }
+            buffer.clear();
+            start = i + 1;
+        }
+    }
+
+    private static String session(int recipients) {
+        StringBuilder to = new StringBuilder("to ");
+        for (int i = 0; i < recipients; i++) {
+            to.append(i == 0 ? "" : ",").append("user").append(i).append("@earth.planet");
+        }
+        return "begin\n" + to + "\nfrom trillian@earth.planet\nsubject hello\ndata hello from the benchmark\n"
+                + "send\nquit\n";
+    }
+}
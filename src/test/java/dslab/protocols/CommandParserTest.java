@@ -0,0 +1,56 @@
+package dslab.protocols;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class CommandParserTest {
+
+    private final CommandParser parser = new CommandParser(StandardCharsets.US_ASCII);
+
+    @Test
+    public void parse_recognisesVerbsAndArguments() {
+        assertEquals(CommandParser.Verb.BEGIN, parser.parse(line("begin\r")));
+        assertEquals(CommandParser.Verb.SUBJECT, parser.parse(line("subject hello world")));
+        assertEquals("hello world", parser.argumentString());
+        assertEquals(CommandParser.Verb.LOGIN, parser.parse(line("login trillian 12345")));
+        assertEquals("trillian 12345", parser.argumentString());
+    }
+
+    @Test
+    public void parse_rejectsMissingOrUnexpectedArguments() {
+        assertEquals(CommandParser.Verb.UNKNOWN, parser.parse(line("to")));
+        assertEquals(CommandParser.Verb.UNKNOWN, parser.parse(line("send now")));
+        assertEquals(CommandParser.Verb.UNKNOWN, parser.parse(line("sendx")));
+        assertEquals(CommandParser.Verb.UNKNOWN, parser.parse(line("")));
+    }
+
+    @Test
+    public void scanAddresses_countsAndRejects() {
+        parser.parse(line("to a@earth.planet,b@univer.ze,"));
+        assertEquals(2, parser.scanAddresses());
+
+        parser.parse(line("to a@earth.planet,b-c@univer.ze"));
+        assertEquals(-1, parser.scanAddresses());
+        assertEquals("b-c@univer.ze", parser.invalidAddress());
+
+        parser.parse(line("to a@earth.planet,b@c@univer.ze"));
+        assertEquals(-1, parser.scanAddresses());
+    }
+
+    @Test
+    public void isValidAddress_matchesTheAddressPattern() {
+        assertTrue(CommandParser.isValidAddress("zaphod@univer.ze"));
+        assertFalse(CommandParser.isValidAddress("zaphod"));
+        assertFalse(CommandParser.isValidAddress("zaphod beeblebrox@univer.ze"));
+    }
+
+    private static ByteBuffer line(String line) {
+        return ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,39 @@
+package dslab.transfer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * AdmissionControllerTest.
+ */
+public class AdmissionControllerTest {
+
+    @Test
+    public void saturatesAtTheHighWatermarkAndOpensAgainOnlyAtTheLowOne() {
+        AdmissionController admission = new AdmissionController(10, 5, false);
+        assertFalse(admission.isSaturated(0));
+        assertFalse(admission.isSaturated(9));
+        assertTrue(admission.isSaturated(10));
+        // draining below the high watermark is not enough
+        assertTrue(admission.isSaturated(9));
+        assertTrue(admission.isSaturated(6));
+        assertFalse(admission.isSaturated(5));
+        // and filling up again below it does not saturate
+        assertFalse(admission.isSaturated(9));
+        assertTrue(admission.isSaturated(12));
+
+        admission.recordAccepted();
+        admission.recordRejected();
+        admission.recordRejected();
+        String statistics = admission.statistics(12);
+        assertTrue(statistics, statistics.startsWith("state=saturated depth=12 watermarks=5/10 accepted=1 "
+                + "rejected=2 saturations=2 "));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lowWatermarkAboveTheHighOne_isRefused() {
+        new AdmissionController(5, 10, false);
+    }
+}
@@ -0,0 +1,74 @@
+package dslab.transfer;
+
+import dslab.dtos.Email;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BounceAggregatorTest.
+ */
+public class BounceAggregatorTest {
+
+    private static Email email(String sender, int n) {
+        return new Email(new String[]{"arthur@earth.planet"}, sender, "s" + n, "hello " + n);
+    }
+
+    @Test(timeout = 15000)
+    public void failuresOfASender_areReportedInOneCappedErrorEmail() throws Exception {
+        BlockingQueue<Email> sent = new LinkedBlockingQueue<>();
+        BounceAggregator bounces = new BounceAggregator(100, 60000, 2);
+        bounces.start(sent::add);
+        for (int i = 0; i < 5; i++) {
+            bounces.add(email("zaphod@univer.ze", i), "unreachable");
+        }
+        bounces.add(email("trillian@earth.planet", 0), "unreachable");
+
+        Email first = sent.poll(5, TimeUnit.SECONDS);
+        Email second = sent.poll(5, TimeUnit.SECONDS);
+        Email zaphod = first.getRecipients()[0].equals("zaphod@univer.ze") ? first : second;
+        assertEquals("5 emails couldn't be delivered", zaphod.getSubject());
+        assertTrue(zaphod.getData().endsWith("and 3 more"));
+
+        // the next failure waits for the minimum interval
+        bounces.add(email("zaphod@univer.ze", 5), "unreachable");
+        assertNull(sent.poll(300, TimeUnit.MILLISECONDS));
+        assertEquals(List.of("bounces", "zaphod@univer.ze"), List.copyOf(bounces.statistics().keySet()));
+        bounces.shutdown();
+    }
+
+    @Test(timeout = 15000)
+    public void failedEmails_areReleasedOnlyOnceTheirErrorEmailIsQueued() throws Exception {
+        BlockingQueue<Email> sent = new LinkedBlockingQueue<>();
+        AtomicInteger released = new AtomicInteger();
+        BounceAggregator bounces = new BounceAggregator(300, 60000, 10);
+        bounces.start(errorMail -> sent.add(errorMail) && !errorMail.getRecipients()[0].equals("trillian@earth.planet"));
+        bounces.add(email("zaphod@univer.ze", 0), "unreachable", released::incrementAndGet);
+        bounces.add(email("zaphod@univer.ze", 1), "unreachable", released::incrementAndGet);
+        assertEquals(0, released.get());
+        sent.poll(5, TimeUnit.SECONDS);
+        while (released.get() < 2) {
+            Thread.sleep(10);
+        }
+
+        // an error email that could not be spooled leaves its failures in the spool
+        bounces.add(email("trillian@earth.planet", 0), "unreachable", released::incrementAndGet);
+        sent.poll(5, TimeUnit.SECONDS);
+        Thread.sleep(100);
+        assertEquals(2, released.get());
+
+        // failures collected at shutdown stay in the spool too
+        bounces.add(email("arthur@earth.planet", 0), "unreachable", released::incrementAndGet);
+        bounces.shutdown();
+        assertNull(sent.poll(500, TimeUnit.MILLISECONDS));
+        assertEquals(2, released.get());
+    }
+}
@@ -0,0 +1,48 @@
+package dslab.transfer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * CircuitBreakerTest.
+ */
+public class CircuitBreakerTest {
+
+    @Test
+    public void opensAfterConsecutiveFailuresAndFailsFast() {
+        CircuitBreaker breaker = new CircuitBreaker("127.0.0.1:11762", 3, 0, 60000, 1);
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordSuccess(1000);
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allow());
+    }
+
+    @Test
+    public void halfOpenLetsOneProbeThrough() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("127.0.0.1:11762", 1, 50, 20, 2);
+        breaker.recordSuccess(100_000_000);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(30);
+        assertTrue(breaker.allow());
+        assertFalse(breaker.allow());
+        breaker.recordSuccess(1000);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.allow());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(30);
+        assertTrue(breaker.allow());
+        breaker.recordSuccess(1000);
+        assertTrue(breaker.allow());
+        breaker.recordSuccess(1000);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+}
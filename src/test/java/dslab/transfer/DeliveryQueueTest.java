@@ -0,0 +1,49 @@
+package dslab.transfer;
+
+import dslab.dtos.Email;
+import dslab.util.FairQueue;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DeliveryQueueTest.
+ */
+public class DeliveryQueueTest {
+
+    private static Delivery delivery(DeliveryQueue destination, String sender, int n) {
+        Email email = new Email(new String[]{"arthur@earth.planet"}, sender, "s" + n, "hello " + n);
+        return new Delivery(new Envelope(email, -1), destination, List.of(destination), List.of("arthur@earth.planet"));
+    }
+
+    @Test
+    public void deliveriesOfASenderAtItsLimit_areParkedUntilThereIsRoom() throws Exception {
+        DeliveryQueue destination = new DeliveryQueue("127.0.0.1:11762", new InetSocketAddress("127.0.0.1", 11762),
+                new FairQueue<>(4, 2, 1, delivery -> delivery.getEmail().getSender(), sender -> 1, delivery -> 1));
+        for (int i = 0; i < 3; i++) {
+            destination.enqueue(delivery(destination, "zaphod@univer.ze", i));
+        }
+        assertEquals(2, destination.size());
+        assertEquals(1, destination.getParked());
+        assertTrue(destination.isFull("zaphod@univer.ze", DeliveryLanes.Lane.INTERACTIVE));
+        assertFalse(destination.isFull("trillian@earth.planet", DeliveryLanes.Lane.BULK));
+
+        // other senders are not held up by the parked delivery
+        destination.enqueue(delivery(destination, "trillian@earth.planet", 0));
+        assertEquals(3, destination.size());
+
+        List<Delivery> taken = new ArrayList<>();
+        taken.add(destination.take());
+        taken.add(destination.take());
+        assertEquals(0, destination.getParked());
+        destination.drainTo(taken, 10);
+        assertEquals(4, taken.size());
+        assertEquals(4, destination.getOutstanding());
+    }
+}
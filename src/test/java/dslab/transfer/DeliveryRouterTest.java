@@ -0,0 +1,104 @@
+package dslab.transfer;
+
+import dslab.dtos.Email;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DeliveryRouterTest.
+ */
+public class DeliveryRouterTest {
+
+    private Path spoolDirectory;
+    private DmtpConnectionPool connections;
+    private MonitoringReporter monitoring;
+    private DeliveryRouter router;
+    private BounceAggregator bounces;
+    private volatile boolean refuseBounces;
+
+    @Before
+    public void setUp() throws Exception {
+        spoolDirectory = Files.createTempDirectory("spool");
+    }
+
+    private void startRouter() throws Exception {
+        Properties domains = new Properties();
+        // nothing listens on port 1, so every delivery fails
+        domains.setProperty("earth.planet", "127.0.0.1:1");
+        domains.setProperty("univer.ze", "127.0.0.1:1");
+        connections = new DmtpConnectionPool(1, 1000, false, new DmtpConnection.Timeouts(500, 500),
+                endpoint -> new CircuitBreaker(endpoint, 100, 0, 1000, 1));
+        monitoring = new MonitoringReporter(new InetSocketAddress("127.0.0.1", 1), 50, 10);
+        bounces = new BounceAggregator(50, 50, 20);
+        router = new DeliveryRouter(RoutingTable.of(domains),
+                () -> new ArrayBlockingQueue<Delivery>(10) {
+                    @Override
+                    public boolean offer(Delivery delivery) {
+                        return !(refuseBounces && delivery.getLane() == DeliveryLanes.Lane.BOUNCE)
+                                && super.offer(delivery);
+                    }
+                },
+                new DeliveryWorkerPool(1, 1, 1, 60000, 200),
+                new MailSpool(spoolDirectory, 1024 * 1024, MailSpool.FsyncPolicy.NONE, 2),
+                new RetryScheduler(10, 10, 0),
+                new AdmissionController(100, 50, false),
+                Set.of(),
+                new LoadBalancer(LoadBalancer.Policy.LEAST_OUTSTANDING, connections::isAvailable),
+                new DeliveryLanes(65536, 10),
+                bounces,
+                new Stage<>("validate", 1, 16), new Stage<>("route", 1, 16), new Stage<>("report", 1, 16));
+        router.start(connections, monitoring, 1, 0);
+    }
+
+    @After
+    public void tearDown() {
+        if (router != null) {
+            router.shutdown();
+            connections.close();
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void failedEmail_staysInTheSpoolWhileItsErrorEmailCannotBeQueued() throws Exception {
+        refuseBounces = true;
+        startRouter();
+        assertTrue(router.route(new Email(new String[]{"arthur@earth.planet"}, "zaphod@univer.ze", "lost?", "hi")));
+        while (!router.bounceStatistics().get("bounces").startsWith("failures=1 ")) {
+            Thread.sleep(20);
+        }
+        // give the digest time to be flushed, and refused
+        Thread.sleep(500);
+        assertTrue(router.bounceStatistics().get("bounces").contains("error-emails=0"));
+        router.shutdown();
+
+        Map<Long, Email> recovered = new MailSpool(spoolDirectory, 1024 * 1024, MailSpool.FsyncPolicy.NONE, 2).open();
+        assertEquals(1, recovered.size());
+        assertEquals("lost?", recovered.values().iterator().next().getSubject());
+    }
+
+    @Test(timeout = 15000)
+    public void failedErrorEmail_isReleasedWithoutAnotherErrorEmail() throws Exception {
+        MailSpool spool = new MailSpool(spoolDirectory, 1024 * 1024, MailSpool.FsyncPolicy.NONE, 2);
+        spool.open();
+        spool.append(new Email(new String[]{"zaphod@univer.ze"}, new BounceAggregator(1, 1, 1).getMailer(),
+                "Email couldn't be delivered", "recovered"));
+        spool.close();
+        startRouter();
+        while (!router.spoolStatistics().contains(" outstanding=0 ")) {
+            Thread.sleep(20);
+        }
+        assertTrue(router.bounceStatistics().get("bounces").startsWith("failures=0 "));
+    }
+}
@@ -0,0 +1,115 @@
+package dslab.transfer;
+
+import dslab.dtos.Email;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * DeliveryWorkerPoolTest.
+ */
+public class DeliveryWorkerPoolTest {
+
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private DeliveryWorkerPool pool;
+    private DeliveryQueue destination;
+
+    @Before
+    public void setUp() {
+        // the controller only runs when the test calls it
+        pool = new DeliveryWorkerPool(2, 1, 4, TimeUnit.HOURS.toMillis(1), 100);
+        destination = new DeliveryQueue("127.0.0.1:11762", new InetSocketAddress("127.0.0.1", 11762),
+                new ArrayBlockingQueue<>(100));
+        pool.add(destination);
+        pool.start(queue -> () -> {
+        });
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    private void queue(int deliveries) {
+        for (int i = 0; i < deliveries; i++) {
+            Email email = new Email(new String[]{"arthur@earth.planet"}, "zaphod@univer.ze", "s" + i, "hello");
+            destination.offer(new Delivery(new Envelope(email, -1), destination, List.of(destination),
+                    List.of("arthur@earth.planet")));
+        }
+    }
+
+    private void sample(int times, Runnable deliveries) {
+        for (int i = 0; i < times; i++) {
+            deliveries.run();
+            pool.adjust();
+        }
+    }
+
+    @Test
+    public void persistentBacklog_addsOneWorkerAtATimeUpToTheMaximum() {
+        assertEquals(2, destination.getTargetWorkers());
+        queue(5);
+        sample(2, () -> {
+        });
+        assertEquals(2, destination.getTargetWorkers());
+        sample(1, () -> {
+        });
+        assertEquals(3, destination.getTargetWorkers());
+        sample(3, () -> {
+        });
+        assertEquals(4, destination.getTargetWorkers());
+        sample(6, () -> {
+        });
+        assertEquals(4, destination.getTargetWorkers());
+    }
+
+    @Test
+    public void slowOrFailingDeliveries_halveTheWorkersDownToTheMinimum() {
+        pool.resize(null, 4);
+        sample(1, () -> destination.recordDelivered(SLOW));
+        assertEquals(4, destination.getTargetWorkers());
+        sample(1, () -> destination.recordDelivered(SLOW));
+        assertEquals(2, destination.getTargetWorkers());
+        sample(2, destination::recordFailed);
+        assertEquals(1, destination.getTargetWorkers());
+        sample(4, () -> destination.recordDelivered(SLOW));
+        assertEquals(1, destination.getTargetWorkers());
+    }
+
+    @Test
+    public void interruptedStreaks_doNotResize() {
+        queue(5);
+        sample(2, () -> {
+        });
+        // a slow sample breaks the backlog streak, a fast one the congestion streak
+        sample(1, () -> destination.recordDelivered(SLOW));
+        sample(2, () -> {
+        });
+        sample(1, () -> destination.recordDelivered(SLOW));
+        assertEquals(2, destination.getTargetWorkers());
+
+        destination.drainTo(new ArrayList<>(), 100);
+        sample(9, () -> {
+        });
+        sample(1, () -> destination.recordDelivered(FAST));
+        sample(9, () -> {
+        });
+        assertEquals(2, destination.getTargetWorkers());
+        sample(1, () -> {
+        });
+        assertEquals(1, destination.getTargetWorkers());
+        sample(20, () -> {
+        });
+        assertEquals(1, destination.getTargetWorkers());
+    }
+}
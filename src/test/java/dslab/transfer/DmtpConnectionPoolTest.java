@@ -0,0 +1,100 @@
+package dslab.transfer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DmtpConnectionPoolTest.
+ */
+public class DmtpConnectionPoolTest {
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private ServerSocket server;
+    private DmtpConnectionPool pool;
+    private String endpoint;
+    private InetSocketAddress address;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0);
+        address = new InetSocketAddress("127.0.0.1", server.getLocalPort());
+        endpoint = "127.0.0.1:" + server.getLocalPort();
+        Thread thread = new Thread(this::serve);
+        thread.setDaemon(true);
+        thread.start();
+        pool = new DmtpConnectionPool(4, 60000, false, new DmtpConnection.Timeouts(1000, 1000),
+                e -> new CircuitBreaker(e, 5, 0, 1000, 1));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.close();
+        server.close();
+    }
+
+    @Test(timeout = 15000)
+    public void endpointWithoutCompression_isNotAskedAgainUntilReset() throws Exception {
+        DmtpConnection connection = pool.borrow(endpoint, address, true);
+        assertFalse(connection.isCompressing());
+        // the first connection was dropped on the unknown command
+        assertEquals(2, connections.get());
+        assertTrue(pool.compressionStatistics().get(endpoint).endsWith("unsupported"));
+
+        pool.invalidate(connection);
+        pool.invalidate(pool.borrow(endpoint, address, true));
+        assertEquals(3, connections.get());
+
+        pool.resetCompression();
+        pool.invalidate(pool.borrow(endpoint, address, true));
+        assertEquals(5, connections.get());
+    }
+
+    /**
+     * A mailbox server without the compression extension, which ends the session on it.
+     */
+    private void serve() {
+        try {
+            while (true) {
+                Socket socket = server.accept();
+                connections.incrementAndGet();
+                Thread thread = new Thread(() -> answer(socket));
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    private void answer(Socket socket) {
+        try (socket) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+            writer.println("ok DMTP");
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("compress")) {
+                    writer.println("error protocol error");
+                    return;
+                }
+                writer.println("ok");
+            }
+        } catch (IOException e) {
+            // the pool closed the connection
+        }
+    }
+}
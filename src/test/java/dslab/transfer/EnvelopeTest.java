@@ -0,0 +1,30 @@
+package dslab.transfer;
+
+import dslab.dtos.Email;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * EnvelopeTest.
+ */
+public class EnvelopeTest {
+
+    @Test
+    public void partitionsServedByTheSameMailboxServer_areRecordedApart() {
+        Envelope envelope = new Envelope(new Email(new String[]{"arthur@earth.planet", "ford@betelgeuse.star"},
+                "zaphod@univer.ze", "hi", "hello"), -1);
+        envelope.recordDelivered("arthur@earth.planet", "127.0.0.1:11762");
+        envelope.recordFailed("ford@betelgeuse.star", "127.0.0.1:11762", "rejected by the mailbox server");
+        envelope.recordFailed("nowhere.void", "nowhere.void", "unknown domain");
+
+        assertEquals(3, envelope.getTimings().size());
+        assertEquals("127.0.0.1:11762", envelope.getTimings().get("arthur@earth.planet").getDestination());
+        assertEquals(2, envelope.getFailures().size());
+        assertEquals("rejected by the mailbox server", envelope.getFailures().get("ford@betelgeuse.star"));
+
+        FanoutStatistics statistics = new FanoutStatistics();
+        statistics.record(envelope);
+        assertEquals("deliveries=2", statistics.statistics().get("127.0.0.1:11762").split(" ")[0]);
+    }
+}
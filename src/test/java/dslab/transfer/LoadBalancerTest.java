@@ -0,0 +1,92 @@
+package dslab.transfer;
+
+import dslab.dtos.Email;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * LoadBalancerTest.
+ */
+public class LoadBalancerTest {
+
+    private static DeliveryQueue queue(int port, int outstanding) {
+        DeliveryQueue destination = new DeliveryQueue("127.0.0.1:" + port, new InetSocketAddress("127.0.0.1", port),
+                new ArrayBlockingQueue<>(10));
+        for (int i = 0; i < outstanding; i++) {
+            Email email = new Email(new String[]{"arthur@earth.planet"}, "zaphod@univer.ze", "s" + i, "hello");
+            destination.offer(new Delivery(new Envelope(email, -1), destination, List.of(destination),
+                    List.of("arthur@earth.planet")));
+        }
+        return destination;
+    }
+
+    private static Map<DeliveryQueue, Integer> choose(LoadBalancer balancer, List<DeliveryQueue> candidates,
+                                                      DeliveryQueue failed, int times) {
+        Map<DeliveryQueue, Integer> chosen = new HashMap<>();
+        for (int i = 0; i < times; i++) {
+            chosen.merge(balancer.choose(candidates, failed), 1, Integer::sum);
+        }
+        return chosen;
+    }
+
+    @Test
+    public void leastOutstanding_picksTheEmptiestServerAndSpreadsTies() {
+        LoadBalancer balancer = new LoadBalancer(LoadBalancer.Policy.LEAST_OUTSTANDING, endpoint -> true);
+        DeliveryQueue a = queue(1, 2);
+        DeliveryQueue b = queue(2, 0);
+        DeliveryQueue c = queue(3, 1);
+        assertEquals(Map.of(b, 100), choose(balancer, List.of(a, b, c), null, 100));
+
+        DeliveryQueue d = queue(4, 0);
+        Map<DeliveryQueue, Integer> chosen = choose(balancer, List.of(a, b, c, d), null, 1000);
+        assertEquals(Set.of(b, d), chosen.keySet());
+        assertTrue(chosen.toString(), chosen.get(b) > 350 && chosen.get(d) > 350);
+    }
+
+    @Test
+    public void latencyWeighted_favoursTheFasterServerInProportion() {
+        LoadBalancer balancer = new LoadBalancer(LoadBalancer.Policy.LATENCY_WEIGHTED, endpoint -> true);
+        DeliveryQueue fast = queue(1, 0);
+        DeliveryQueue slow = queue(2, 0);
+        fast.recordDelivered(TimeUnit.MILLISECONDS.toNanos(1));
+        slow.recordDelivered(TimeUnit.MILLISECONDS.toNanos(10));
+        Map<DeliveryQueue, Integer> chosen = choose(balancer, List.of(fast, slow), null, 10000);
+        // 10 to 1 by the inverse latencies
+        assertTrue(chosen.toString(), chosen.get(fast) > 8800 && chosen.get(fast) < 9400);
+    }
+
+    @Test
+    public void unavailableServers_dropOutAndRejoin() {
+        Set<String> down = ConcurrentHashMap.newKeySet();
+        LoadBalancer balancer = new LoadBalancer(LoadBalancer.Policy.LEAST_OUTSTANDING,
+                endpoint -> !down.contains(endpoint));
+        DeliveryQueue a = queue(1, 3);
+        DeliveryQueue b = queue(2, 0);
+        List<DeliveryQueue> candidates = List.of(a, b);
+
+        down.add(b.getEndpoint());
+        assertEquals(Map.of(a, 50), choose(balancer, candidates, null, 50));
+        // with all servers down the choice is made among all of them
+        down.add(a.getEndpoint());
+        assertEquals(Map.of(b, 50), choose(balancer, candidates, null, 50));
+        down.clear();
+        assertEquals(Map.of(b, 50), choose(balancer, candidates, null, 50));
+
+        // a delivery that just failed moves to another server, even a busier one
+        assertSame(a, balancer.choose(candidates, b));
+        assertEquals(Long.valueOf(1), balancer.statistics().get("failovers"));
+        assertEquals(Long.valueOf(51), balancer.statistics().get(a.getEndpoint()));
+    }
+}
@@ -0,0 +1,70 @@
+package dslab.transfer;
+
+import dslab.dtos.Email;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * Compares accepting emails into the spool under each fsync policy with the in-memory queue alone. Every producer
+ * thread appends and completes emails like a transfer server would; run with {@code java dslab.transfer.MailSpoolBenchmark
+ * [producers] [emails per producer]}.
+ */
+public class MailSpoolBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int producers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int emails = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        Email email = new Email(new String[]{"trillian@earth.planet"}, "arthur@earth.planet", "benchmark",
+                "The quick brown fox jumps over the lazy dog");
+
+        report("memory", producers, emails, run(producers, emails, () -> {
+            BlockingQueue<Email> queue = new LinkedBlockingDeque<>(100);
+            queue.put(email);
+            queue.take();
+        }));
+
+        for (MailSpool.FsyncPolicy policy : MailSpool.FsyncPolicy.values()) {
+            Path directory = Files.createTempDirectory("spool-benchmark");
+            MailSpool spool = new MailSpool(directory, 4 * 1024 * 1024, policy, 2);
+            spool.open();
+            long nanos = run(producers, emails, () -> spool.complete(spool.append(email)));
+            report("spool " + policy.name().toLowerCase(), producers, emails, nanos);
+            System.out.println("  " + spool.statistics());
+            spool.close();
+        }
+    }
+
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    private static long run(int producers, int emails, Operation operation) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(producers);
+        long start = System.nanoTime();
+        for (int i = 0; i < producers; i++) {
+            new Thread(() -> {
+                try {
+                    for (int j = 0; j < emails; j++) {
+                        operation.run();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        return System.nanoTime() - start;
+    }
+
+    private static void report(String name, int producers, int emails, long nanos) {
+        long total = (long) producers * emails;
+        System.out.printf("%-12s %10.0f emails/s %8.2f us/email%n", name, total / (nanos / 1e9),
+                nanos / 1e3 / total);
+    }
+}
@@ -0,0 +1,80 @@
+package dslab.transfer;
+
+import dslab.dtos.Email;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * MailSpoolTest.
+ */
+public class MailSpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(timeout = 15000)
+    public void reopen_recoversOnlyUndeliveredEmails() throws Exception {
+        Path directory = folder.getRoot().toPath();
+
+        MailSpool spool = new MailSpool(directory, 64 * 1024, MailSpool.FsyncPolicy.GROUP, 1);
+        assertTrue(spool.open().isEmpty());
+        long first = spool.append(email("first"));
+        long second = spool.append(email("second"));
+        long third = spool.append(email("third"));
+        spool.complete(second);
+        spool.close();
+
+        MailSpool reopened = new MailSpool(directory, 64 * 1024, MailSpool.FsyncPolicy.GROUP, 1);
+        Map<Long, Email> undelivered = reopened.open();
+        assertEquals(2, undelivered.size());
+        assertEquals("first", undelivered.get(first).getSubject());
+        assertEquals("third", undelivered.get(third).getSubject());
+        assertEquals("trillian@earth.planet", undelivered.get(first).getRecipients()[0]);
+
+        long fourth = reopened.append(email("fourth"));
+        assertTrue(fourth > third);
+        reopened.close();
+    }
+
+    @Test(timeout = 15000)
+    public void completedSegments_areReclaimed() throws Exception {
+        Path directory = folder.getRoot().toPath();
+
+        MailSpool spool = new MailSpool(directory, 1024, MailSpool.FsyncPolicy.NONE, 0);
+        spool.open();
+        for (int i = 0; i < 100; i++) {
+            spool.complete(spool.append(email("email " + i)));
+        }
+        assertTrue(segmentFiles(directory) <= 2);
+
+        long pending = spool.append(email("pending"));
+        spool.close();
+
+        MailSpool reopened = new MailSpool(directory, 1024, MailSpool.FsyncPolicy.NONE, 0);
+        Map<Long, Email> undelivered = reopened.open();
+        assertEquals(1, undelivered.size());
+        assertEquals("pending", undelivered.get(pending).getSubject());
+        reopened.close();
+    }
+
+    private static Email email(String subject) {
+        return new Email(new String[]{"trillian@earth.planet", "zaphod@univer.ze"}, "arthur@earth.planet", subject,
+                "hello");
+    }
+
+    private static long segmentFiles(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package dslab.transfer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * RateLimiterTest.
+ */
+public class RateLimiterTest {
+
+    @Test
+    public void turnsAwayASenderOverItsBurstButNotOthers() {
+        RateLimiter limiter = new RateLimiter(4, 1000, 60000);
+        limiter.setLimit(RateLimiter.Kind.SENDER, 0.001, 2);
+        assertNull(limiter.acquire("zaphod@univer.ze", "127.0.0.1"));
+        assertNull(limiter.acquire("zaphod@univer.ze", "127.0.0.1"));
+        assertEquals(RateLimiter.Kind.SENDER, limiter.acquire("zaphod@univer.ze", "127.0.0.1"));
+        assertNull(limiter.acquire("arthur@earth.planet", "127.0.0.1"));
+
+        limiter.setLimit(RateLimiter.Kind.SENDER, 0, 0);
+        assertNull(limiter.acquire("zaphod@univer.ze", "127.0.0.1"));
+    }
+
+    @Test
+    public void rejectedEmailsDoNotUseUpTheOtherBuckets() {
+        RateLimiter limiter = new RateLimiter(4, 1000, 60000);
+        limiter.setLimit(RateLimiter.Kind.CLIENT, 0.001, 2);
+        limiter.setLimit(RateLimiter.Kind.SENDER, 0.001, 1);
+        assertNull(limiter.acquire("zaphod@univer.ze", "127.0.0.1"));
+        assertEquals(RateLimiter.Kind.SENDER, limiter.acquire("zaphod@univer.ze", "127.0.0.1"));
+        assertEquals(RateLimiter.Kind.SENDER, limiter.acquire("zaphod@univer.ze", "127.0.0.1"));
+        assertNull(limiter.acquire("arthur@earth.planet", "127.0.0.1"));
+        assertEquals(RateLimiter.Kind.CLIENT, limiter.acquire("ford@earth.planet", "127.0.0.1"));
+    }
+
+    @Test
+    public void releasedTokens_canBeTakenAgain() {
+        RateLimiter limiter = new RateLimiter(4, 1000, 60000);
+        limiter.setLimit(RateLimiter.Kind.SENDER, 0.001, 1);
+        limiter.setLimit(RateLimiter.Kind.CLIENT, 0.001, 1);
+        assertNull(limiter.acquire("zaphod@univer.ze", "127.0.0.1"));
+        limiter.release("zaphod@univer.ze", "127.0.0.1");
+        assertNull(limiter.acquire("zaphod@univer.ze", "127.0.0.1"));
+        assertEquals(RateLimiter.Kind.CLIENT, limiter.acquire("zaphod@univer.ze", "127.0.0.1"));
+    }
+}
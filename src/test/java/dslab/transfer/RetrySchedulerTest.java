@@ -0,0 +1,81 @@
+package dslab.transfer;
+
+import dslab.dtos.Email;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * RetrySchedulerTest.
+ */
+public class RetrySchedulerTest {
+
+    private static Delivery delivery(DeliveryQueue destination, int n) {
+        Email email = new Email(new String[]{"arthur@earth.planet"}, "zaphod@univer.ze", "s" + n, "hello " + n);
+        return new Delivery(new Envelope(email, -1), destination, List.of(destination), List.of("arthur@earth.planet"));
+    }
+
+    @Test
+    public void backoffDoublesUpToTheMaximumWithJitterInTheUpperHalf() {
+        RetryScheduler retries = new RetryScheduler(100, 1000, 60000);
+        long[][] bounds = {{1, 50, 100}, {2, 100, 200}, {3, 200, 400}, {4, 400, 800}, {5, 500, 1000},
+                {40, 500, 1000}};
+        for (long[] bound : bounds) {
+            Set<Long> delays = new HashSet<>();
+            for (int i = 0; i < 200; i++) {
+                long delay = retries.backoff((int) bound[0]);
+                assertTrue("attempt " + bound[0] + ": " + delay, delay >= bound[1] && delay <= bound[2]);
+                delays.add(delay);
+            }
+            assertTrue("attempt " + bound[0] + " is not jittered", delays.size() > 1);
+        }
+        retries.shutdown();
+    }
+
+    @Test
+    public void deliveryFailingForTooLong_isGivenUp() {
+        RetryScheduler retries = new RetryScheduler(100, 1000, 0);
+        DeliveryQueue destination = new DeliveryQueue("127.0.0.1:11762", new InetSocketAddress("127.0.0.1", 11762),
+                new ArrayBlockingQueue<>(1));
+        Delivery delivery = delivery(destination, 0);
+        assertFalse(retries.schedule(delivery));
+        assertEquals(1, delivery.getAttempts());
+        assertTrue(retries.statistics().get("retries").contains("waiting=0 scheduled=0 requeued=0 recovered=0 "
+                + "expired=1"));
+        retries.shutdown();
+    }
+
+    @Test(timeout = 15000)
+    public void deliveryWaitsForRoomInAFullQueue() throws Exception {
+        RetryScheduler retries = new RetryScheduler(20, 20, 60000);
+        DeliveryQueue destination = new DeliveryQueue("127.0.0.1:11762", new InetSocketAddress("127.0.0.1", 11762),
+                new ArrayBlockingQueue<>(1));
+        Delivery blocker = delivery(destination, 0);
+        assertTrue(destination.offer(blocker));
+        Delivery delivery = delivery(destination, 1);
+        assertTrue(retries.schedule(delivery));
+
+        Thread.sleep(200);
+        assertTrue(retries.statistics().get("retries").startsWith("waiting=1 scheduled=1 requeued=0 "));
+        assertEquals("1=1", retries.statistics().get("attempts"));
+
+        assertSame(blocker, destination.take());
+        assertSame(delivery, destination.poll(5, TimeUnit.SECONDS));
+        while (!retries.statistics().get("retries").startsWith("waiting=0 scheduled=1 requeued=1 ")) {
+            Thread.sleep(10);
+        }
+        retries.recordDelivered(delivery);
+        assertTrue(retries.statistics().get("retries").contains("recovered=1"));
+        retries.shutdown();
+    }
+}
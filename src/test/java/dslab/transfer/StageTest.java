@@ -0,0 +1,74 @@
+package dslab.transfer;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * StageTest.
+ */
+public class StageTest {
+
+    @Test(timeout = 15000)
+    public void fullStage_holdsUpItsProducer() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> processed = new CopyOnWriteArrayList<>();
+        Stage<Integer> stage = new Stage<>("test", 1, 1);
+        stage.start(item -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            processed.add(item);
+        });
+        // one item is processed, one waits in the buffer, the third one has to wait for room
+        CountDownLatch submitted = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < 3; i++) {
+                stage.submit(i);
+            }
+            submitted.countDown();
+        });
+        producer.start();
+        assertFalse(submitted.await(300, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        assertTrue(submitted.await(5, TimeUnit.SECONDS));
+        while (processed.size() < 3) {
+            Thread.sleep(10);
+        }
+        assertEquals(List.of(0, 1, 2), processed);
+        stage.shutdown();
+    }
+
+    @Test(timeout = 15000)
+    public void fullStage_refusesOfferedItemsWithoutWaiting() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Stage<Integer> stage = new Stage<>("test", 1, 1);
+        stage.start(item -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(stage.offer(0));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(stage.offer(1));
+        assertFalse(stage.offer(2));
+        assertTrue(stage.statistics().contains("refused=1"));
+
+        release.countDown();
+        stage.shutdown();
+    }
+}
@@ -0,0 +1,99 @@
+package dslab.transfer;
+
+import dslab.Constants;
+import dslab.JunitSocketClient;
+import dslab.Sockets;
+import dslab.TestBase;
+import dslab.util.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * TransferServerAdmissionTest.
+ */
+public class TransferServerAdmissionTest extends TestBase {
+
+    private final List<Socket> connections = new CopyOnWriteArrayList<>();
+    private ServerSocket mailbox;
+    private int serverPort;
+
+    @Before
+    public void setUp() throws Exception {
+        Config config = new Config("transfer-1");
+        // a single consumer that gets stuck, so the second email stays queued and saturates the server
+        config.setProperty("delivery.workers.per.destination", "1");
+        config.setProperty("delivery.workers.min", "1");
+        config.setProperty("delivery.workers.max", "1");
+        config.setProperty("admission.high.watermark", "1");
+        config.setProperty("admission.low.watermark", "0");
+        config.setProperty("admission.pause.accept", "false");
+        serverPort = config.getInt("tcp.port");
+
+        // stands in for the mailbox server of earth.planet, greets and then never answers
+        mailbox = new ServerSocket(11762);
+        Thread thread = new Thread(this::serveMailbox);
+        thread.setDaemon(true);
+        thread.start();
+
+        new Thread(new TransferServer("transfer-1", config, in, out)).start();
+        Sockets.waitForSocket("localhost", serverPort, Constants.COMPONENT_STARTUP_WAIT);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        in.addLine("shutdown");
+        Thread.sleep(Constants.COMPONENT_TEARDOWN_WAIT);
+        mailbox.close();
+        for (Socket connection : connections) {
+            connection.close();
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void saturatedServer_answersBusy() throws Exception {
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            String response = null;
+            int accepted = 0;
+            for (int i = 0; i < 5; i++) {
+                client.sendAndVerify("begin", "ok");
+                client.sendAndVerify("from trillian@earth.planet", "ok");
+                client.sendAndVerify("to arthur@earth.planet", "ok 1");
+                client.sendAndVerify("subject hello " + i, "ok");
+                client.sendAndVerify("data hello from junit", "ok");
+                response = client.sendAndRead("send");
+                if (!response.equals("ok")) {
+                    break;
+                }
+                accepted++;
+                Thread.sleep(100);
+            }
+            assertEquals("error busy, try later", response);
+            assertTrue("accepted " + accepted, accepted >= 1);
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
+    private void serveMailbox() {
+        try {
+            while (true) {
+                Socket socket = mailbox.accept();
+                connections.add(socket);
+                new PrintWriter(socket.getOutputStream(), true).println("ok DMTP");
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package dslab.transfer;
+
+import dslab.*;
+import dslab.util.Config;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * TransferServerNioProtocolTest.
+ */
+public class TransferServerNioProtocolTest extends TestBase {
+
+    private static final Log LOG = LogFactory.getLog(TransferServerNioProtocolTest.class);
+
+    private String componentId = "transfer-1";
+
+    private int serverPort;
+
+    @Before
+    public void setUp() throws Exception {
+        Config config = new Config(componentId);
+        config.setProperty("dmtp.mode", "nio");
+        ITransferServer component = new TransferServer(componentId, config, in, out);
+        serverPort = config.getInt("tcp.port");
+        new Thread(component).start();
+
+        LOG.info("Waiting for server socket to appear");
+        Sockets.waitForSocket("localhost", serverPort, Constants.COMPONENT_STARTUP_WAIT);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        in.addLine("shutdown"); // send "shutdown" command to command line
+        Thread.sleep(Constants.COMPONENT_TEARDOWN_WAIT);
+    }
+
+    @Test(timeout = 15000)
+    public void defaultDmtpInteractionTest() throws Exception {
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("from trillian@earth.planet", "ok");
+            client.sendAndVerify("to arthur@earth.planet", "ok 1");
+            client.sendAndVerify("subject hello", "ok");
+            client.sendAndVerify("data hello from junit", "ok");
+            client.sendAndVerify("send", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void missingBegin_returnsProtocolError() throws Exception {
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("from trillian@earth.planet", "error protocol error");
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void concurrentSessions_areServedIndependently() throws Exception {
+        List<JunitSocketClient> clients = new ArrayList<>();
+        try {
+            // more idle sessions than the blocking mode has pooled threads
+            for (int i = 0; i < 50; i++) {
+                JunitSocketClient client = new JunitSocketClient(serverPort, err);
+                clients.add(client);
+                client.verify("ok DMTP");
+                client.sendAndVerify("begin", "ok");
+            }
+            for (JunitSocketClient client : clients) {
+                client.sendAndVerify("to arthur@earth.planet", "ok 1");
+                client.sendAndVerify("quit", "ok bye");
+            }
+        } finally {
+            for (JunitSocketClient client : clients) {
+                client.close();
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package dslab.transfer;
 
 import dslab.*;
+import dslab.protocols.DmtpCompression;
 import dslab.util.Config;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -8,6 +9,9 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
 /**
  * TransferServerProtocolTest.
  */
@@ -63,4 +67,58 @@ public class TransferServerProtocolTest extends TestBase {
         }
     }
 
+    @Test(timeout = 15000)
+    public void dataBlock_isAnsweredOnceAfterTheDot() throws Exception {
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("from trillian@earth.planet", "ok");
+            client.sendAndVerify("to arthur@earth.planet", "ok 1");
+            client.sendAndVerify("subject hello", "ok");
+            client.send("data");
+            client.send("hello from junit");
+            client.send("..a line starting with a dot");
+            client.send("send");
+            client.sendAndVerify(".", "ok");
+            client.sendAndVerify("send", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void compressedData_isAcceptedAfterNegotiation() throws Exception {
+        String data = Base64.getEncoder().encodeToString(new DmtpCompression().compress(
+                "hello from junit\n.a line starting with a dot".getBytes(StandardCharsets.UTF_8)));
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("compress gzip", "error");
+            client.sendAndVerify("compress deflate", "ok deflate");
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("from trillian@earth.planet", "ok");
+            client.sendAndVerify("to arthur@earth.planet", "ok 1");
+            client.sendAndVerify("subject hello", "ok");
+            client.sendAndVerify("zdata bm90IGRlZmxhdGVk", "error invalid compressed data");
+            client.sendAndVerify("zdata " + data, "ok");
+            client.send("zdata");
+            client.send(data);
+            client.sendAndVerify(".", "ok");
+            client.sendAndVerify("send", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void compressedData_isRefusedWhenItInflatesTooFar() throws Exception {
+        String bomb = Base64.getEncoder().encodeToString(new DmtpCompression().compress(new byte[32 * 1024 * 1024]));
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("compress deflate", "ok deflate");
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("from trillian@earth.planet", "ok");
+            client.sendAndVerify("to arthur@earth.planet", "ok 1");
+            client.sendAndVerify("zdata " + bomb, "error invalid compressed data");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
 }
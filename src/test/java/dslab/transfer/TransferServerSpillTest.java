@@ -0,0 +1,134 @@
+package dslab.transfer;
+
+import dslab.Constants;
+import dslab.JunitSocketClient;
+import dslab.Sockets;
+import dslab.TestBase;
+import dslab.util.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * TransferServerSpillTest.
+ */
+public class TransferServerSpillTest extends TestBase {
+
+    private static final String DATA = "a first line of data\n.a line starting with a dot\n..and one with two\n"
+            + "a last line that makes the data longer than the spill threshold";
+
+    private final CompletableFuture<String> received = new CompletableFuture<>();
+    private final CountDownLatch accept = new CountDownLatch(1);
+    private ServerSocket mailbox;
+    private Path spillDirectory;
+    private int serverPort;
+
+    @Before
+    public void setUp() throws Exception {
+        Config config = new Config("transfer-1");
+        spillDirectory = Files.createTempDirectory("spill");
+        config.setProperty("dmtp.data.spill.threshold", "64");
+        config.setProperty("dmtp.data.spill.dir", spillDirectory.toString());
+        serverPort = config.getInt("tcp.port");
+
+        // stands in for the mailbox server of earth.planet and holds the data until the test lets it go
+        mailbox = new ServerSocket(11762);
+        Thread thread = new Thread(this::serveMailbox);
+        thread.setDaemon(true);
+        thread.start();
+
+        new Thread(new TransferServer("transfer-1", config, in, out)).start();
+        Sockets.waitForSocket("localhost", serverPort, Constants.COMPONENT_STARTUP_WAIT);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        in.addLine("shutdown");
+        Thread.sleep(Constants.COMPONENT_TEARDOWN_WAIT);
+        mailbox.close();
+    }
+
+    @Test(timeout = 15000)
+    public void largeData_isSpilledRelayedIntactAndDeleted() throws Exception {
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("from zaphod@univer.ze", "ok");
+            client.sendAndVerify("to trillian@earth.planet", "ok 1");
+            client.sendAndVerify("subject spilled", "ok");
+            client.send("data");
+            for (String line : DATA.split("\n")) {
+                client.send(line.startsWith(".") ? "." + line : line);
+            }
+            client.sendAndVerify(".", "ok");
+            client.sendAndVerify("send", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
+
+        assertEquals(DATA, received.get(5, TimeUnit.SECONDS));
+        assertEquals("the data is kept in a file until it is delivered", 1, spillFiles());
+        accept.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (spillFiles() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals("the file is deleted after the delivery", 0, spillFiles());
+    }
+
+    private long spillFiles() throws IOException {
+        try (Stream<Path> files = Files.list(spillDirectory)) {
+            return files.count();
+        }
+    }
+
+    /**
+     * Answers every command with ok and records the first data block, undoing the dot-stuffing.
+     */
+    private void serveMailbox() {
+        try (Socket socket = mailbox.accept()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8));
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+            writer.println("ok DMTP");
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.equals("data")) {
+                    List<String> lines = new ArrayList<>();
+                    while (!(line = reader.readLine()).equals(".")) {
+                        lines.add(line.startsWith(".") ? line.substring(1) : line);
+                    }
+                    received.complete(String.join("\n", lines));
+                    accept.await();
+                    writer.println("ok");
+                } else if (line.startsWith("to ")) {
+                    writer.println("ok 1");
+                } else if (line.equals("quit")) {
+                    writer.println("ok bye");
+                    return;
+                } else {
+                    writer.println("ok");
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            received.completeExceptionally(e);
+        }
+    }
+}
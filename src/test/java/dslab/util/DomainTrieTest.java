@@ -0,0 +1,36 @@
+package dslab.util;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * DomainTrieTest.
+ */
+public class DomainTrieTest {
+
+    private final DomainTrie<String> trie = new DomainTrie<>(Map.of(
+            "earth.planet", "127.0.0.1:11762",
+            "univer.ze", "127.0.0.1:11764",
+            "mail.univer.ze", "127.0.0.1:11766"));
+
+    @Test
+    public void get_matchesOnlyExactDomains() {
+        assertEquals("127.0.0.1:11762", trie.get("earth.planet"));
+        assertEquals("127.0.0.1:11762", trie.get("Earth.Planet"));
+        assertNull(trie.get("planet"));
+        assertNull(trie.get("moon.earth.planet"));
+    }
+
+    @Test
+    public void findSuffix_returnsLongestParentDomain() {
+        assertEquals("127.0.0.1:11762", trie.findSuffix("moon.earth.planet"));
+        assertEquals("127.0.0.1:11764", trie.findSuffix("univer.ze"));
+        assertEquals("127.0.0.1:11766", trie.findSuffix("eu.mail.univer.ze"));
+        assertNull(trie.findSuffix("xearth.planet"));
+        assertNull(trie.findSuffix("planet"));
+    }
+}
@@ -0,0 +1,69 @@
+package dslab.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FairQueueTest.
+ */
+public class FairQueueTest {
+
+    private static FairQueue<String> queue(int capacity, int maxPerKey, Map<String, Integer> weights) {
+        // elements look like "key/n", every element costs 1
+        return new FairQueue<>(capacity, maxPerKey, 1, e -> e.substring(0, e.indexOf('/')),
+                k -> weights.getOrDefault(k, 1), e -> 1);
+    }
+
+    @Test(timeout = 15000)
+    public void keys_areServedInTurns() throws Exception {
+        FairQueue<String> queue = queue(100, 100, Map.of());
+        for (int i = 0; i < 6; i++) {
+            assertTrue(queue.offer("bulk/" + i));
+        }
+        assertTrue(queue.offer("a/0"));
+        assertTrue(queue.offer("b/0"));
+
+        List<String> served = new ArrayList<>();
+        queue.drainTo(served, 4);
+        assertTrue(served.contains("a/0"));
+        assertTrue(served.contains("b/0"));
+        assertEquals(Map.of("bulk", 4), queue.backlog());
+    }
+
+    @Test(timeout = 15000)
+    public void weights_shareConsumersProportionally() throws Exception {
+        FairQueue<String> queue = queue(100, 100, Map.of("heavy", 3));
+        for (int i = 0; i < 20; i++) {
+            queue.put("light/" + i);
+            queue.put("heavy/" + i);
+        }
+        int heavy = 0;
+        for (int i = 0; i < 20; i++) {
+            if (queue.take().startsWith("heavy")) {
+                heavy++;
+            }
+        }
+        assertTrue("heavy got " + heavy + " of 20", heavy >= 14 && heavy <= 16);
+    }
+
+    @Test(timeout = 15000)
+    public void oneKey_cannotFillTheQueue() throws Exception {
+        FairQueue<String> queue = queue(4, 2, Map.of());
+        assertTrue(queue.offer("bulk/0"));
+        assertTrue(queue.offer("bulk/1"));
+        assertFalse(queue.offer("bulk/2"));
+        assertFalse(queue.offer("bulk/2", 50, TimeUnit.MILLISECONDS));
+        assertTrue(queue.offer("a/0"));
+        assertTrue(queue.offer("b/0"));
+        assertFalse(queue.offer("c/0"));
+        assertEquals(0, queue.remainingCapacity());
+    }
+}
@@ -0,0 +1,71 @@
+package dslab.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * LaneQueueTest.
+ */
+public class LaneQueueTest {
+
+    private static LaneQueue<String> queue(LaneQueue.Scheduling scheduling, int[] weights, long maxWaitMillis) {
+        // elements look like "lane/n"
+        return new LaneQueue<>(100, 50, scheduling, weights, maxWaitMillis,
+                e -> Integer.parseInt(e.substring(0, e.indexOf('/'))));
+    }
+
+    @Test(timeout = 15000)
+    public void strict_servesUrgentLanesFirst() throws Exception {
+        LaneQueue<String> queue = queue(LaneQueue.Scheduling.STRICT, new int[]{1, 1, 1}, 0);
+        queue.put("2/0");
+        queue.put("1/0");
+        queue.put("2/1");
+        queue.put("0/0");
+        List<String> served = new ArrayList<>();
+        queue.drainTo(served);
+        assertEquals(List.of("0/0", "1/0", "2/0", "2/1"), served);
+    }
+
+    @Test(timeout = 15000)
+    public void weighted_sharesTurnsByWeight() throws Exception {
+        LaneQueue<String> queue = queue(LaneQueue.Scheduling.WEIGHTED, new int[]{3, 1}, 0);
+        for (int i = 0; i < 8; i++) {
+            queue.put("0/" + i);
+            queue.put("1/" + i);
+        }
+        int bulk = 0;
+        for (int i = 0; i < 8; i++) {
+            if (queue.take().startsWith("1/")) {
+                bulk++;
+            }
+        }
+        assertEquals(2, bulk);
+    }
+
+    @Test(timeout = 15000)
+    public void overdueElements_areServedAheadOfUrgentOnes() throws Exception {
+        LaneQueue<String> queue = queue(LaneQueue.Scheduling.STRICT, new int[]{1, 1}, 20);
+        queue.put("1/0");
+        Thread.sleep(40);
+        queue.put("0/0");
+        assertEquals("1/0", queue.take());
+        assertEquals(1, queue.promotions()[1]);
+    }
+
+    @Test(timeout = 15000)
+    public void fullLane_leavesRoomForOthers() {
+        LaneQueue<String> queue = queue(LaneQueue.Scheduling.STRICT, new int[]{1, 1}, 0);
+        for (int i = 0; i < 50; i++) {
+            assertTrue(queue.offer("1/" + i));
+        }
+        assertFalse(queue.offer("1/50"));
+        assertTrue(queue.offer("0/0"));
+        assertEquals(51, queue.size());
+    }
+}
@@ -0,0 +1,78 @@
+package dslab.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.function.Supplier;
+
+/**
+ * Compares the handoff throughput of the ring buffer under each wait strategy with the JDK queues for a growing
+ * number of producer and consumer pairs. Run with {@code java dslab.util.RingBufferQueueBenchmark [capacity]
+ * [elements per producer]}.
+ */
+public class RingBufferQueueBenchmark {
+
+    private static final int WARMUP_ROUNDS = 2;
+
+    public static void main(String[] args) throws Exception {
+        int capacity = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int elements = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+
+        for (int pairs : new int[]{1, 2, 4, 8}) {
+            System.out.println(pairs + " producer(s) / " + pairs + " consumer(s)");
+            measure("LinkedBlockingDeque", () -> new LinkedBlockingDeque<>(capacity), pairs, elements);
+            measure("ArrayBlockingQueue", () -> new ArrayBlockingQueue<>(capacity), pairs, elements);
+            for (RingBufferQueue.WaitStrategy waitStrategy : RingBufferQueue.WaitStrategy.values()) {
+                if (waitStrategy == RingBufferQueue.WaitStrategy.BUSY_SPIN
+                        && 2 * pairs > Runtime.getRuntime().availableProcessors()) {
+                    continue; // spinning threads without a core of their own only measure the scheduler
+                }
+                measure("ring " + waitStrategy.name().toLowerCase(),
+                        () -> new RingBufferQueue<>(capacity, waitStrategy), pairs, elements);
+            }
+        }
+    }
+
+    private static void measure(String name, Supplier<BlockingQueue<Integer>> queues, int pairs, int elements)
+            throws InterruptedException {
+        long nanos = 0;
+        for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+            nanos = run(queues.get(), pairs, elements);
+        }
+        long total = (long) pairs * elements;
+        System.out.printf("  %-20s %12.0f ops/s%n", name, total / (nanos / 1e9));
+    }
+
+    private static long run(BlockingQueue<Integer> queue, int pairs, int elements) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(2 * pairs);
+        Integer element = 42;
+        long start = System.nanoTime();
+        for (int i = 0; i < pairs; i++) {
+            new Thread(() -> {
+                try {
+                    for (int j = 0; j < elements; j++) {
+                        queue.put(element);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+            new Thread(() -> {
+                try {
+                    for (int j = 0; j < elements; j++) {
+                        queue.take();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        return System.nanoTime() - start;
+    }
+}
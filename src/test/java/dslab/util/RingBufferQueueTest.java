@@ -0,0 +1,79 @@
+package dslab.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * RingBufferQueueTest.
+ */
+public class RingBufferQueueTest {
+
+    @Test(timeout = 15000)
+    public void boundedQueue_keepsOrderAndCapacity() throws Exception {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<>(3, RingBufferQueue.WaitStrategy.BLOCKING);
+        assertTrue(queue.offer(1));
+        assertTrue(queue.offer(2));
+        assertTrue(queue.offer(3));
+        assertFalse(queue.offer(4));
+        assertFalse(queue.offer(4, 50, TimeUnit.MILLISECONDS));
+        assertEquals(3, queue.size());
+        assertEquals(0, queue.remainingCapacity());
+
+        assertEquals(Integer.valueOf(1), queue.take());
+        assertTrue(queue.offer(4));
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(3, queue.drainTo(drained));
+        assertEquals(List.of(2, 3, 4), drained);
+        assertNull(queue.poll(50, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 30000)
+    public void concurrentProducersAndConsumers_handOverEveryElement() throws Exception {
+        int threads = 4;
+        for (RingBufferQueue.WaitStrategy waitStrategy : RingBufferQueue.WaitStrategy.values()) {
+            if (waitStrategy == RingBufferQueue.WaitStrategy.BUSY_SPIN
+                    && Runtime.getRuntime().availableProcessors() < 2 * threads) {
+                continue; // spinning threads only make progress with a core each
+            }
+            RingBufferQueue<Long> queue = new RingBufferQueue<>(7, waitStrategy);
+            long perProducer = 20000;
+            AtomicLong sum = new AtomicLong();
+            List<Thread> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                workers.add(new Thread(() -> {
+                    try {
+                        for (long j = 1; j <= perProducer; j++) {
+                            queue.put(j);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }));
+                workers.add(new Thread(() -> {
+                    try {
+                        for (long j = 0; j < perProducer; j++) {
+                            sum.addAndGet(queue.take());
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }));
+            }
+            workers.forEach(Thread::start);
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            assertEquals(waitStrategy.name(), threads * perProducer * (perProducer + 1) / 2, sum.get());
+            assertEquals(0, queue.size());
+        }
+    }
+}